@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpleserver.options.Options;
+
+/**
+ * Opens the sockets from SimpleServer to the Minecraft server, each from its
+ * own loopback source address. With backendPoolSize above zero, a background
+ * thread keeps that many connections open ahead of time so a join storm does
+ * not wait for connects. Every pooled socket still has its own source
+ * address and is handed to exactly one player. Sockets are retired after
+ * backendPoolMaxAge seconds, before the Minecraft server gives up on a
+ * connection that never logs in, and are checked for a closed or
+ * unexpectedly talking backend before use.
+ */
+public class BackendPool {
+  private static final LocalAddressFactory addressFactory = new LocalAddressFactory();
+
+  private static final long RETRY_MILLIS = 1000;
+
+  private final int port;
+  private final boolean useChannel;
+  private final int size;
+  private final long maxAge;
+
+  private final LinkedList<Pooled> idle = new LinkedList<Pooled>();
+  private final Refiller refiller;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  private volatile boolean run = true;
+
+  public BackendPool(Server server) {
+    Options options = server.options;
+    port = options.getInt("internalPort");
+    useChannel = server.tunnelSelector != null;
+    size = Math.max(0, options.getInt("backendPoolSize"));
+    maxAge = TimeUnit.SECONDS.toNanos(Math.max(1, options.getInt("backendPoolMaxAge")));
+
+    if (size > 0) {
+      refiller = new Refiller();
+      refiller.setDaemon(true);
+      refiller.start();
+      refiller.setName("BackendPool");
+    }
+    else {
+      refiller = null;
+    }
+  }
+
+  /**
+   * Returns a connected backend socket for one player, from the pool if a
+   * usable one is waiting.
+   */
+  public Socket take() throws IOException {
+    while (true) {
+      Pooled pooled;
+      synchronized (idle) {
+        pooled = idle.pollLast();
+        idle.notifyAll();
+      }
+      if (pooled == null) {
+        break;
+      }
+
+      if (System.nanoTime() - pooled.created > maxAge) {
+        expired.incrementAndGet();
+        close(pooled.socket);
+      }
+      else if (!isUsable(pooled.socket)) {
+        stale.incrementAndGet();
+        close(pooled.socket);
+      }
+      else {
+        hits.incrementAndGet();
+        return pooled.socket;
+      }
+    }
+
+    if (size > 0) {
+      misses.incrementAndGet();
+    }
+    return open();
+  }
+
+  public void stop() {
+    run = false;
+    if (refiller != null) {
+      refiller.interrupt();
+    }
+    synchronized (idle) {
+      for (Pooled pooled : idle) {
+        close(pooled.socket);
+      }
+      idle.clear();
+    }
+  }
+
+  public String report() {
+    int waiting;
+    synchronized (idle) {
+      waiting = idle.size();
+    }
+    return "Pooled: " + waiting + " of " + size + "\n" + "Taken: " + hits.get()
+        + " from pool, " + misses.get() + " opened on demand\n"
+        + "Discarded: " + stale.get() + " stale, " + expired.get()
+        + " expired\n" + "Opened: " + opened.get() + " (" + failures.get()
+        + " failed)\n";
+  }
+
+  private Socket open() throws IOException {
+    try {
+      InetAddress localAddress = InetAddress.getByName(addressFactory.getNextAddress());
+      return open(localAddress);
+    }
+    catch (IOException e) {
+      try {
+        return open(null);
+      }
+      catch (IOException E) {
+        failures.incrementAndGet();
+        throw e;
+      }
+    }
+  }
+
+  private Socket open(InetAddress localAddress) throws IOException {
+    InetAddress loopback = InetAddress.getByName(null);
+    Socket socket;
+    if (!useChannel) {
+      if (localAddress == null) {
+        socket = new Socket(loopback, port);
+      }
+      else {
+        socket = new Socket(loopback, port, localAddress, 0);
+      }
+    }
+    else {
+      SocketChannel channel = SocketChannel.open();
+      try {
+        if (localAddress != null) {
+          channel.socket().bind(new InetSocketAddress(localAddress, 0));
+        }
+        channel.connect(new InetSocketAddress(loopback, port));
+      }
+      catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      socket = channel.socket();
+    }
+    opened.incrementAndGet();
+    return socket;
+  }
+
+  /**
+   * The Minecraft server sends nothing before the client's handshake, so a
+   * pooled socket is only usable while a read would still block.
+   */
+  private static boolean isUsable(Socket socket) {
+    if (socket.isClosed() || !socket.isConnected() || socket.isInputShutdown()) {
+      return false;
+    }
+
+    try {
+      SocketChannel channel = socket.getChannel();
+      if (channel != null) {
+        channel.configureBlocking(false);
+        try {
+          return channel.read(ByteBuffer.allocate(1)) == 0;
+        }
+        finally {
+          channel.configureBlocking(true);
+        }
+      }
+
+      socket.setSoTimeout(1);
+      try {
+        socket.getInputStream().read();
+        return false;
+      }
+      catch (SocketTimeoutException e) {
+        return true;
+      }
+      finally {
+        socket.setSoTimeout(0);
+      }
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void close(Socket socket) {
+    try {
+      socket.close();
+    }
+    catch (IOException e) {
+    }
+  }
+
+  private static final class Pooled {
+    private final Socket socket;
+    private final long created;
+
+    private Pooled(Socket socket) {
+      this.socket = socket;
+      created = System.nanoTime();
+    }
+  }
+
+  private final class Refiller extends Thread {
+    @Override
+    public void run() {
+      while (run) {
+        retire();
+
+        boolean full;
+        synchronized (idle) {
+          full = idle.size() >= size;
+        }
+
+        if (!full) {
+          try {
+            Pooled pooled = new Pooled(open());
+            synchronized (idle) {
+              if (!run) {
+                close(pooled.socket);
+                return;
+              }
+              idle.addLast(pooled);
+            }
+            continue;
+          }
+          catch (IOException e) {
+            // The Minecraft server is not accepting yet; try again later.
+          }
+        }
+
+        synchronized (idle) {
+          try {
+            idle.wait(full ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(maxAge) / 4)
+                           : RETRY_MILLIS);
+          }
+          catch (InterruptedException e) {
+          }
+        }
+      }
+    }
+
+    /**
+     * Closes sockets that are about to reach their maximum age, oldest
+     * first, so they are replaced before they go stale.
+     */
+    private void retire() {
+      long now = System.nanoTime();
+      while (true) {
+        Pooled oldest;
+        synchronized (idle) {
+          oldest = idle.peekFirst();
+          if (oldest == null || now - oldest.created < maxAge / 2) {
+            return;
+          }
+          idle.removeFirst();
+        }
+        expired.incrementAndGet();
+        close(oldest.socket);
+      }
+    }
+  }
+}
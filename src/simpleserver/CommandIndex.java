@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.reflections.Reflections;
+import org.reflections.scanners.SubTypesScanner;
+
+import simpleserver.command.PlayerCommand;
+import simpleserver.command.ServerCommand;
+
+/**
+ * Lists the command classes. The build writes the index in the
+ * META-INF/services format (see the command-index target) into its own
+ * directory that only the release jar includes, so startup does not need to
+ * scan the classpath; without an index, for example when running from an
+ * IDE, the classpath is scanned with Reflections instead.
+ */
+public class CommandIndex {
+  private static final String LOCATION = "META-INF/services/";
+  private static final Class<?>[] TYPES = { PlayerCommand.class,
+      ServerCommand.class };
+
+  public static <T> List<Class<? extends T>> find(Class<T> type) {
+    List<Class<? extends T>> classes = null;
+    try {
+      classes = readIndex(type);
+    }
+    catch (IOException e) {
+      System.out.println("[SimpleServer] " + e);
+    }
+    catch (ClassNotFoundException e) {
+      System.out.println("[SimpleServer] Command index is out of date: " + e);
+      classes = null;
+    }
+
+    if (classes == null || classes.isEmpty()) {
+      classes = scan(type);
+    }
+    return classes;
+  }
+
+  /**
+   * Lists the classes in the class output directory (the first argument) and
+   * writes the index below the index directory (the second argument). The
+   * compiled classes are listed from the directory directly, which needs
+   * neither Reflections nor javassist to understand the class file version.
+   */
+  public static void main(String[] args) throws IOException,
+      ClassNotFoundException {
+    File classes = new File(args[0]);
+    File output = new File(args[1]);
+    List<String> compiled = new ArrayList<String>();
+    listClasses(new File(classes, "simpleserver"), "simpleserver", compiled);
+
+    File directory = new File(output, LOCATION);
+    directory.mkdirs();
+
+    ClassLoader loader = CommandIndex.class.getClassLoader();
+    for (Class<?> type : TYPES) {
+      Set<String> names = new TreeSet<String>();
+      for (String name : compiled) {
+        Class<?> candidate = Class.forName(name, false, loader);
+        if (type.isAssignableFrom(candidate)
+            && !Modifier.isAbstract(candidate.getModifiers())) {
+          names.add(name);
+        }
+      }
+
+      Writer writer = new FileWriter(new File(directory, type.getName()));
+      try {
+        for (String name : names) {
+          writer.write(name);
+          writer.write('\n');
+        }
+      }
+      finally {
+        writer.close();
+      }
+      System.out.println("Indexed " + names.size() + " "
+          + type.getSimpleName() + "s");
+    }
+  }
+
+  private static void listClasses(File directory, String packageName,
+                                  List<String> classes) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (file.isDirectory()) {
+        listClasses(file, packageName + "." + name, classes);
+      }
+      else if (name.endsWith(".class")) {
+        classes.add(packageName + "."
+            + name.substring(0, name.length() - ".class".length()));
+      }
+    }
+  }
+
+  private static <T> List<Class<? extends T>> readIndex(Class<T> type)
+      throws IOException, ClassNotFoundException {
+    ClassLoader loader = CommandIndex.class.getClassLoader();
+    Enumeration<URL> indexes = loader.getResources(LOCATION + type.getName());
+    List<Class<? extends T>> classes = new ArrayList<Class<? extends T>>();
+    while (indexes.hasMoreElements()) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(indexes.nextElement().openStream(), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int comment = line.indexOf('#');
+          if (comment >= 0) {
+            line = line.substring(0, comment);
+          }
+          line = line.trim();
+          if (line.length() > 0) {
+            classes.add(Class.forName(line, false, loader).asSubclass(type));
+          }
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    return classes;
+  }
+
+  private static <T> List<Class<? extends T>> scan(Class<T> type) {
+    Reflections r = new Reflections("simpleserver", new SubTypesScanner());
+    List<Class<? extends T>> classes = new ArrayList<Class<? extends T>>();
+    for (Class<? extends T> command : r.getSubTypesOf(type)) {
+      if (!Modifier.isAbstract(command.getModifiers())) {
+        classes.add(command);
+      }
+    }
+    return classes;
+  }
+}
@@ -20,14 +20,9 @@
  */
 package simpleserver;
 
-import java.lang.reflect.Modifier;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
-
-import org.reflections.Reflections;
-import org.reflections.scanners.SubTypesScanner;
 
 import simpleserver.command.AbstractCommand;
 import simpleserver.command.Command;
@@ -93,12 +88,7 @@ public class CommandParser {
   }
 
   public String commandPrefix() {
-    if (options.getBoolean("useSlashes")) {
-      return "/";
-    }
-    else {
-      return "!";
-    }
+    return options.snapshot().commandPrefix;
   }
 
   private String extractName(String message, int offset) {
@@ -112,14 +102,7 @@ public class CommandParser {
   }
 
   private <T extends Command> void loadCommands(Class<T> type, Map<String, T> commands, Map<Class, T> commandClasses) {
-    Reflections r = new Reflections("simpleserver", new SubTypesScanner());
-    Set<Class<? extends T>> types = r.getSubTypesOf(type);
-
-    for (Class<? extends T> commandType : types) {
-      if (Modifier.isAbstract(commandType.getModifiers())) {
-        continue;
-      }
-
+    for (Class<? extends T> commandType : CommandIndex.find(type)) {
       T command;
       try {
         command = commandType.getConstructor().newInstance(new Object[] {});
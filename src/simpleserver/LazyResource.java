@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+/**
+ * A rarely used resource that is only loaded when it is first needed.
+ * Loading it just marks it stale, so a reload takes effect on the next use.
+ */
+public class LazyResource<T extends Resource> implements Resource {
+  private final T resource;
+  private volatile boolean loaded = false;
+
+  public LazyResource(T resource) {
+    this.resource = resource;
+  }
+
+  public T get() {
+    if (!loaded) {
+      synchronized (this) {
+        if (!loaded) {
+          resource.load();
+          loaded = true;
+        }
+      }
+    }
+    return resource;
+  }
+
+  public void load() {
+    loaded = false;
+  }
+
+  public synchronized void save() {
+    // Saving an unloaded resource would overwrite its file with nothing.
+    if (loaded) {
+      resource.save();
+    }
+  }
+
+  T resource() {
+    return resource;
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/**
+ * Hands out a different 127.x.y.z source address for every backend
+ * connection, so the Minecraft server sees each player on its own address.
+ * Falls back to 127.0.0.1 where the system cannot bind to other loopback
+ * addresses.
+ */
+final class LocalAddressFactory {
+  private static final int[] octets = { 0, 0, 1 };
+  private static Boolean canCycle = null;
+
+  synchronized String getNextAddress() {
+    if (!canCycle()) {
+      return "127.0.0.1";
+    }
+
+    if (octets[2] >= 255) {
+      if (octets[1] >= 255) {
+        if (octets[0] >= 255) {
+          octets[0] = 0;
+        }
+        else {
+          ++octets[0];
+        }
+        octets[1] = 0;
+      }
+      else {
+        ++octets[1];
+      }
+      octets[2] = 2;
+    }
+    else {
+      ++octets[2];
+    }
+
+    return "127." + octets[0] + "." + octets[1] + "." + octets[2];
+  }
+
+  private boolean canCycle() {
+    if (canCycle == null) {
+      InetAddress testDestination;
+      InetAddress testSource;
+      try {
+        testDestination = InetAddress.getByName(null);
+        testSource = InetAddress.getByName("127.0.1.2");
+      }
+      catch (UnknownHostException e) {
+        System.out.println("[SimpleServer] Notice: Unable to bind with 127.0.1.2.");
+
+        canCycle = false;
+        return false;
+      }
+
+      try {
+        Socket testSocket = new Socket(testDestination, 80, testSource, 0);
+        testSocket.close();
+      }
+      catch (BindException e) {
+        System.out.println("[SimpleServer] Notice: Unable to bind with 127.0.1.2.");
+
+        canCycle = false;
+        return false;
+      }
+      catch (IOException e) {
+        // Probably nothing listening on port 80
+      }
+
+      canCycle = true;
+    }
+
+    return canCycle;
+  }
+}
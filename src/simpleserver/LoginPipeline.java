@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpleserver.options.Options;
+import simpleserver.thread.ThreadLauncher;
+
+/**
+ * Takes accepted game connections off the listener thread. Admission checks
+ * (robots, bans), reading the handshake and opening the backend socket run as
+ * separate stages, each on its own pool with a bounded queue, so a slow
+ * backend connect only holds up the connections queued behind it.
+ *
+ * A connection that has not sent its handshake within handshakeTimeout
+ * seconds of being accepted is dropped. With deferBackendConnect the
+ * handshake is read before the backend socket is opened, so a client that
+ * never sends one never gets a backend socket or tunnel threads; otherwise
+ * the deadline is checked once the connection is tunneling. At most
+ * maxPendingLogins connections may be waiting for their handshake at once.
+ */
+public class LoginPipeline {
+  private static final long STOP_TIMEOUT = 5;
+
+  private final Server server;
+  private final long timeout;
+  private final boolean deferBackend;
+  private final int maxPending;
+  private final Stage admit;
+  private final Stage handshake;
+  private final Stage connect;
+  private final ScheduledThreadPoolExecutor deadlines;
+
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong overLimit = new AtomicLong();
+  private final AtomicLong handshakeTimeouts = new AtomicLong();
+
+  private volatile boolean stopped = false;
+
+  public LoginPipeline(Server server) {
+    this.server = server;
+
+    Options options = server.options;
+    timeout = TimeUnit.SECONDS.toNanos(Math.max(1, options.getInt("handshakeTimeout")));
+    deferBackend = options.getBoolean("deferBackendConnect");
+    maxPending = Math.max(1, options.getInt("maxPendingLogins"));
+    int queueSize = Math.max(1, options.getInt("loginQueueSize"));
+    admit = new Stage("admit", 1, queueSize);
+    // Handshakes are read with blocking sockets, one thread each; the
+    // pending limit keeps them from queueing behind each other.
+    handshake = new Stage("handshake", maxPending, 1);
+    connect = new Stage("connect", Math.max(1, options.getInt("loginThreads")),
+                        queueSize);
+
+    deadlines = new ScheduledThreadPoolExecutor(1, new Threads("LoginDeadline"));
+    deadlines.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Hands an accepted socket to the pipeline. Never blocks; if too many
+   * connections are waiting to log in or the first stage is full the
+   * connection is closed.
+   */
+  public void submit(final Socket client) {
+    final long accepted = System.nanoTime();
+    if (pending.incrementAndGet() > maxPending) {
+      pending.decrementAndGet();
+      overLimit.incrementAndGet();
+      close(client);
+      return;
+    }
+
+    final Permit permit = new Permit();
+    admit.execute(accepted, client, permit, null, new Task() {
+      public boolean run() {
+        final Player player = new Player(client, server);
+        player.setLoginPermit(permit);
+        if (!player.admit()) {
+          return false;
+        }
+
+        if (player.isRobot()) {
+          // Robots never log in and are not held to the handshake deadline.
+          permit.release();
+        }
+        if (!deferBackend || player.isRobot()) {
+          connect(player, accepted, client, permit);
+          return true;
+        }
+
+        handshake.execute(accepted, client, permit, player, new Task() {
+          public boolean run() {
+            if (!player.readHandshake(accepted + timeout)) {
+              return false;
+            }
+            connect(player, accepted, client, permit);
+            return true;
+          }
+        });
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Closes queued connections and waits for running connect jobs, so no
+   * player starts tunneling once this returns. Handshakes still being read
+   * cannot reach the connect stage any more and are closed when they finish.
+   */
+  public void stop() {
+    stopped = true;
+    admit.stop();
+    handshake.stop();
+    connect.stop();
+    deadlines.shutdownNow();
+    try {
+      connect.executor.awaitTermination(STOP_TIMEOUT, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public boolean isStopped() {
+    return stopped;
+  }
+
+  public String report() {
+    return "Pending logins: " + pending.get() + " of " + maxPending + " ("
+        + overLimit.get() + " refused)\n" + admit.report()
+        + (deferBackend ? handshake.report() : "") + connect.report()
+        + "Handshake timeouts: " + handshakeTimeouts.get() + " ("
+        + TimeUnit.NANOSECONDS.toSeconds(timeout) + " s)\n";
+  }
+
+  private void connect(final Player player, final long accepted, Socket client,
+                       Permit permit) {
+    connect.execute(accepted, client, permit, player, new Task() {
+      public boolean run() {
+        if (!player.connect()) {
+          return false;
+        }
+        player.start();
+        if (player.getName() == null) {
+          watch(player, accepted);
+        }
+        return true;
+      }
+    });
+  }
+
+  private void watch(final Player player, long accepted) {
+    long delay = accepted + timeout - System.nanoTime();
+    try {
+      deadlines.schedule(new Runnable() {
+        public void run() {
+          if (player.expireHandshake()) {
+            handshakeTimeouts.incrementAndGet();
+          }
+        }
+      }, Math.max(0, delay), TimeUnit.NANOSECONDS);
+    }
+    catch (RejectedExecutionException e) {
+      // Shutting down; the connection is closed with the server.
+    }
+  }
+
+  private boolean expired(long accepted) {
+    return System.nanoTime() - accepted > timeout;
+  }
+
+  private static void close(Socket client) {
+    try {
+      client.close();
+    }
+    catch (IOException e) {
+    }
+  }
+
+  /**
+   * A connection's place among the pending logins. Released once, when the
+   * handshake has been accepted or the connection is closed.
+   */
+  final class Permit {
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    void release() {
+      if (released.compareAndSet(false, true)) {
+        pending.decrementAndGet();
+      }
+    }
+  }
+
+  private interface Task {
+    /**
+     * Returns false if the connection was closed.
+     */
+    boolean run();
+  }
+
+  private final class Stage {
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private Stage(String name, int threads, int queueSize) {
+      this.name = name;
+      executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                        new ArrayBlockingQueue<Runnable>(queueSize),
+                                        new Threads("Login-" + name));
+      executor.allowCoreThreadTimeOut(true);
+    }
+
+    private void execute(long accepted, Socket client, Permit permit,
+                         Player player, Task task) {
+      Job job = new Job(this, accepted, client, permit, player, task);
+      try {
+        executor.execute(job);
+      }
+      catch (RejectedExecutionException e) {
+        rejected.incrementAndGet();
+        job.abandon();
+        return;
+      }
+
+      int depth = executor.getQueue().size();
+      int max;
+      while (depth > (max = maxDepth.get())
+          && !maxDepth.compareAndSet(max, depth)) {
+      }
+    }
+
+    private void record(long wait, long run) {
+      completed.incrementAndGet();
+      waitNanos.addAndGet(wait);
+      runNanos.addAndGet(run);
+      long max;
+      while (wait + run > (max = maxNanos.get())
+          && !maxNanos.compareAndSet(max, wait + run)) {
+      }
+    }
+
+    private void stop() {
+      for (Runnable job : executor.shutdownNow()) {
+        rejected.incrementAndGet();
+        ((Job) job).abandon();
+      }
+    }
+
+    private String report() {
+      long done = completed.get();
+      long waitAverage = (done == 0) ? 0 : waitNanos.get() / done / 1000;
+      long runAverage = (done == 0) ? 0 : runNanos.get() / done / 1000;
+      return name + ": " + executor.getQueue().size() + " queued (max "
+          + maxDepth.get() + "), " + done + " done, " + waitAverage
+          + " us wait, " + runAverage + " us run, " + maxNanos.get() / 1000000
+          + " ms max; " + dropped.get() + " dropped, " + expired.get()
+          + " expired, " + rejected.get() + " rejected\n";
+    }
+  }
+
+  private final class Job implements Runnable {
+    private final Stage stage;
+    private final long accepted;
+    private final long queued;
+    private final Socket client;
+    private final Permit permit;
+    private final Player player;
+    private final Task task;
+
+    private Job(Stage stage, long accepted, Socket client, Permit permit,
+                Player player, Task task) {
+      this.stage = stage;
+      this.accepted = accepted;
+      this.client = client;
+      this.permit = permit;
+      this.player = player;
+      this.task = task;
+      queued = System.nanoTime();
+    }
+
+    public void run() {
+      long started = System.nanoTime();
+      if (expired(accepted)) {
+        stage.expired.incrementAndGet();
+        abandon();
+        return;
+      }
+      try {
+        if (!task.run()) {
+          stage.dropped.incrementAndGet();
+        }
+      }
+      catch (RuntimeException e) {
+        System.out.println("[SimpleServer] " + e);
+        abandon();
+      }
+      finally {
+        stage.record(started - queued, System.nanoTime() - started);
+      }
+    }
+
+    /**
+     * Closes a connection that will not make it through the pipeline.
+     */
+    private void abandon() {
+      if (player != null) {
+        player.abandon();
+      }
+      else {
+        permit.release();
+        close(client);
+      }
+    }
+  }
+
+  private static final class Threads implements ThreadFactory {
+    private final String name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private Threads(String name) {
+      this.name = name;
+    }
+
+    public Thread newThread(Runnable task) {
+      Thread thread = ThreadLauncher.create(name, task);
+      thread.setName(name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
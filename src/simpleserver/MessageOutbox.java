@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of chat lines waiting to be sent to one player. When it is
+ * full either the oldest queued line or the new line is dropped. A listener
+ * is told about every new line so the tunnel can send it right away instead
+ * of waiting for the next packet from the backend.
+ */
+public class MessageOutbox {
+  private static final AtomicLong totalDrops = new AtomicLong();
+
+  private final LinkedList<String> messages = new LinkedList<String>();
+  private final int capacity;
+  private final boolean dropOldest;
+  private volatile Runnable listener;
+  private volatile int depth;
+  private volatile long drops;
+
+  public MessageOutbox(int capacity, boolean dropOldest) {
+    this.capacity = Math.max(1, capacity);
+    this.dropOldest = dropOldest;
+  }
+
+  public void setListener(Runnable listener) {
+    this.listener = listener;
+  }
+
+  public void add(String message) {
+    synchronized (messages) {
+      if (messages.size() >= capacity) {
+        drops++;
+        totalDrops.incrementAndGet();
+        if (!dropOldest) {
+          return;
+        }
+        messages.removeFirst();
+      }
+      messages.addLast(message);
+      depth = messages.size();
+    }
+
+    Runnable listener = this.listener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  public boolean isEmpty() {
+    return depth == 0;
+  }
+
+  public String poll() {
+    synchronized (messages) {
+      String message = messages.poll();
+      depth = messages.size();
+      return message;
+    }
+  }
+
+  public int depth() {
+    return depth;
+  }
+
+  public long drops() {
+    return drops;
+  }
+
+  public static long totalDrops() {
+    return totalDrops.get();
+  }
+}
@@ -20,19 +20,26 @@
  */
 package simpleserver;
 
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.BindException;
-import java.net.InetAddress;
+import java.io.InputStream;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.SocketTimeoutException;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
+import simpleserver.PlayerGrid.Position;
 import simpleserver.command.PlayerCommand;
+import simpleserver.log.ActivityStore;
+import simpleserver.options.OptionsSnapshot;
 import simpleserver.stream.StreamTunnel;
+import simpleserver.stream.TunnelSelector;
+import simpleserver.thread.ThreadLauncher;
 
 public class Player {
-  private static final LocalAddressFactory addressFactory = new LocalAddressFactory();
+  private static final int MAXIMUM_NAME_LENGTH = 16;
 
   private final long connected;
   private final Socket extsocket;
@@ -41,7 +48,7 @@ public class Player {
   private Socket intsocket;
   private StreamTunnel serverToClient;
   private StreamTunnel clientToServer;
-  private Watchdog watchdog;
+  private Thread watchdog;
 
   private String name = null;
   private boolean closed = false;
@@ -50,7 +57,9 @@ public class Player {
   private boolean instantDestroy = false;
   private boolean godMode = false;
   private String kickMsg = null;
-  private double x, y, z;
+  private volatile Position position = Position.ORIGIN;
+  private final Object locationLock = new Object();
+  private boolean inGrid = false;
   private int group = 0;
   private int entityId = 0;
   private Group groupObject = null;
@@ -58,10 +67,11 @@ public class Player {
   private boolean localChat = false;
   private int blocksPlaced = 0;
   private int blocksDestroyed = 0;
+  private ActivityStore.Counters activity;
   private Player reply = null;
   private String lastCommand = "";
   
-  private Queue<String> messages = new ConcurrentLinkedQueue<String>();
+  private final MessageOutbox messages;
   private Queue<PlayerVisitRequest> visitreqs = new ConcurrentLinkedQueue<PlayerVisitRequest>();
 
   private Coordinate chestPlaced;
@@ -70,10 +80,23 @@ public class Player {
 
   private String nextChestName;
 
+  private LoginPipeline.Permit loginPermit;
+  private String handshake;
+
   public Player(Socket inc, Server parent) {
     connected = System.currentTimeMillis();
     server = parent;
     extsocket = inc;
+    OptionsSnapshot options = server.options.snapshot();
+    messages = new MessageOutbox(options.messageQueueSize,
+                                 options.dropOldestMessages);
+  }
+
+  /**
+   * Robot and ban checks, run by the {@link LoginPipeline} before a backend
+   * connection is opened. Returns false if the connection was closed.
+   */
+  boolean admit() {
     if (server.isRobot(getIPAddress())) {
       System.out.println("[SimpleServer] Robot Heartbeat: " + getIPAddress()
           + ".");
@@ -84,37 +107,156 @@ public class Player {
           + "!");
     }
 
-    if (server.isIPBanned(getIPAddress())) {
+    if (server.isIPBanned(extsocket.getInetAddress())) {
       System.out.println("[SimpleServer] IP " + getIPAddress() + " is banned!");
 
       cleanup();
-      return;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Opens the socket to the Minecraft server. Returns false if the connection
+   * was closed.
+   */
+  boolean connect() {
+    try {
+      intsocket = server.backendPool.take();
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+      if (server.options.getBoolean("exitOnFailure")) {
+        server.stop();
+      }
+      else {
+        server.restart();
+      }
+
+      cleanup();
+      return false;
     }
-    server.requestTracker.addRequest(getIPAddress());
+    return true;
+  }
 
+  /**
+   * Reads the client's handshake before the backend socket is opened, giving
+   * up at deadline (a System.nanoTime() value). Returns false if the
+   * connection was closed.
+   */
+  boolean readHandshake(long deadline) {
+    String name;
     try {
-      InetAddress localAddress = InetAddress.getByName(addressFactory.getNextAddress());
-      intsocket = new Socket(InetAddress.getByName(null),
-                             server.options.getInt("internalPort"),
-                             localAddress, 0);
-    } catch (Exception e) { 
+      byte[] header = readFully(3, deadline);
+      int length = ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+      if (header[0] != 0x02 || length == 0 || length > MAXIMUM_NAME_LENGTH) {
+        System.out.println("[SimpleServer] Disconnecting " + getIPAddress()
+            + ": invalid handshake.");
+        cleanup();
+        return false;
+      }
+
+      byte[] bytes = readFully(length * 2, deadline);
+      char[] chars = new char[length];
+      for (int c = 0; c < length; c++) {
+        chars[c] = (char) (((bytes[c * 2] & 0xff) << 8) | (bytes[c * 2 + 1] & 0xff));
+      }
+      name = new String(chars);
+    }
+    catch (SocketTimeoutException e) {
+      System.out.println("[SimpleServer] Disconnecting " + getIPAddress()
+          + ": no handshake received in time.");
+      cleanup();
+      return false;
+    }
+    catch (IOException e) {
+      cleanup();
+      return false;
+    }
+
+    if (!setName(name)) {
+      sendKick();
+      cleanup();
+      return false;
+    }
+    handshake = name;
+    return true;
+  }
+
+  private byte[] readFully(int length, long deadline) throws IOException {
+    byte[] buffer = new byte[length];
+    InputStream in = extsocket.getInputStream();
+    int offset = 0;
+    while (offset < length) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) {
+        throw new SocketTimeoutException();
+      }
+      extsocket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+      int read = in.read(buffer, offset, length - offset);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+    extsocket.setSoTimeout(0);
+    return buffer;
+  }
+
+  /**
+   * Starts tunneling between the client and the Minecraft server.
+   */
+  void start() {
+    if (server.loginPipeline.isStopped()) {
+      cleanup();
+      return;
+    }
+    if (isKicked) {
+      sendKick();
+      cleanup();
+      return;
+    }
+
+    if (handshake != null) {
+      // Read ahead of the tunnels; pass it on as the client sent it.
       try {
-        intsocket = new Socket(InetAddress.getByName(null), server.options.getInt("internalPort"));
-      } catch (Exception E) {
+        DataOutputStream out = new DataOutputStream(intsocket.getOutputStream());
+        out.writeByte(0x02);
+        out.writeShort(handshake.length());
+        out.writeChars(handshake);
+        out.flush();
+      }
+      catch (IOException e) {
+        cleanup();
+        return;
+      }
+    }
+
+    TunnelSelector tunnelSelector = server.tunnelSelector;
+    if (tunnelSelector != null) {
+      serverToClient = new StreamTunnel(true, this);
+      clientToServer = new StreamTunnel(false, this);
+      try {
+        tunnelSelector.register(this, extsocket.getChannel(),
+                                intsocket.getChannel(), serverToClient,
+                                clientToServer, new Runnable() {
+                                  public void run() {
+                                    cleanup();
+                                  }
+                                });
+      }
+      catch (IOException e) {
         e.printStackTrace();
-        if (server.options.getBoolean("exitOnFailure")) {
-          server.stop();
-        }
-        else {
-          server.restart();
-        }
-  
         cleanup();
         return;
       }
+
+      if (isRobot) {
+        server.addRobotPort(intsocket.getLocalPort());
+      }
+      return;
     }
 
-    watchdog = new Watchdog();
     try {
       serverToClient = new StreamTunnel(intsocket.getInputStream(),
                                         extsocket.getOutputStream(), true, this);
@@ -131,7 +273,10 @@ public class Player {
     if (isRobot) {
       server.addRobotPort(intsocket.getLocalPort());
     }
-    watchdog.start();
+    watchdog = ThreadLauncher.start("PlayerWatchdog", new Watchdog());
+    if (name != null) {
+      watchdog.setName("PlayerWatchdog-" + name);
+    }
   }
 
   public boolean setName(String name) {
@@ -153,11 +298,18 @@ public class Player {
     }
 
     this.name = name;
+    if (loginPermit != null) {
+      loginPermit.release();
+    }
     updateGroup();
 
-    watchdog.setName("PlayerWatchdog-" + name);
+    if (watchdog != null) {
+      watchdog.setName("PlayerWatchdog-" + name);
+    }
     server.connectionLog("player", extsocket, name);
     server.playerList.addPlayer(this);
+    joinGrid();
+    activity = server.activity.join(name);
     return true;
   }
 
@@ -166,8 +318,8 @@ public class Player {
   }
 
   public double distanceTo(Player player) {
-    return Math.sqrt(Math.pow(x - player.x, 2) + Math.pow(y - player.y, 2)
-        + Math.pow(z - player.z, 2));
+    Position other = player.position;
+    return Math.sqrt(position.distanceSquared(other.x, other.y, other.z));
   }
 
   public long getConnectedAt() {
@@ -175,9 +327,35 @@ public class Player {
   }
 
   public void updateLocation(double x, double y, double z, double stance) {
-    this.x = x;
-    this.y = y;
-    this.z = z;
+    synchronized (locationLock) {
+      Position previous = position;
+      position = new Position(x, y, z);
+      if (inGrid) {
+        server.playerGrid.move(this, previous);
+      }
+    }
+  }
+
+  public Position getPosition() {
+    return position;
+  }
+
+  private void joinGrid() {
+    synchronized (locationLock) {
+      if (!inGrid) {
+        inGrid = true;
+        server.playerGrid.add(this);
+      }
+    }
+  }
+
+  private void leaveGrid() {
+    synchronized (locationLock) {
+      if (inGrid) {
+        inGrid = false;
+        server.playerGrid.remove(this);
+      }
+    }
   }
 
   public boolean isAttemptLock() {
@@ -209,7 +387,11 @@ public class Player {
   }
 
   public String getMessage() {
-    return messages.remove();
+    return messages.poll();
+  }
+
+  public MessageOutbox getOutbox() {
+    return messages;
   }
 
   public void addVisitRequest(Player source) {
@@ -230,6 +412,10 @@ public class Player {
     kickMsg = reason;
     isKicked = true;
 
+    if (serverToClient == null) {
+      // Still logging in; start() sends the reason.
+      return;
+    }
     serverToClient.stop();
     clientToServer.stop();
   }
@@ -268,6 +454,7 @@ public class Player {
 
   public void setEntityId(int readInt) {
     entityId = readInt;
+    server.playerList.entityIdChanged();
   }
 
   public int getGroupId() {
@@ -290,15 +477,15 @@ public class Player {
   }
 
   public double getX() {
-    return x;
+    return position.x;
   }
 
   public double getY() {
-    return y;
+    return position.y;
   }
 
   public double getZ() {
-    return z;
+    return position.z;
   }
   
   public void setLocalChat(boolean mode) {
@@ -409,7 +596,7 @@ public class Player {
 
   public void updateGroup() {
     int nameGroup = server.members.getGroup(name);
-    int ipGroup = server.ipMembers.getGroup(getIPAddress());
+    int ipGroup = server.ipMembers.getGroup(extsocket.getInetAddress());
 
     if (ipGroup > nameGroup) {
       group = ipGroup;
@@ -428,10 +615,16 @@ public class Player {
 
   public void placedBlock() {
     blocksPlaced += 1;
+    if (activity != null) {
+      activity.increment(ActivityStore.PLACED);
+    }
   }
   
   public void destroyedBlock() {
     blocksDestroyed += 1;
+    if (activity != null) {
+      activity.increment(ActivityStore.DESTROYED);
+    }
   }
   
   public Integer[] stats() {
@@ -444,7 +637,6 @@ public class Player {
     
     blocksPlaced = 0;
     blocksDestroyed = 0;
-    server.stats.save();
     
     return stats;
   }
@@ -457,6 +649,14 @@ public class Player {
   public Player getReply(){
     return reply;
   }
+
+  public String getFlushReport() {
+    if (serverToClient == null || clientToServer == null) {
+      return getName() + ": not connected";
+    }
+    return getName() + "\n  " + serverToClient.flushReport() + "\n  "
+        + clientToServer.flushReport();
+  }
   
   public void close() {
     if (serverToClient != null) {
@@ -471,16 +671,60 @@ public class Player {
       server.stats.addOnlineMinutes(this, (int)(System.currentTimeMillis() - connected)/1000/60);
       server.stats.addDestroyedBlocks(this, blocksDestroyed);
       server.stats.addPlacedBlocks(this, blocksPlaced);
-      server.stats.save();
       
       server.playerList.removePlayer(this);
+      leaveGrid();
+      if (activity != null) {
+        server.activity.leave(activity);
+        activity = null;
+      }
       name = null;
     }
   }
 
-  private void cleanup() {
+  /**
+   * Closes the connection if the client has not sent its handshake yet.
+   * Returns true if it was closed.
+   */
+  boolean expireHandshake() {
+    if (name != null || closed || isRobot) {
+      return false;
+    }
+    System.out.println("[SimpleServer] Disconnecting " + getIPAddress()
+        + ": no handshake received in time.");
+    cleanup();
+    return true;
+  }
+
+  /**
+   * Closes a connection that the login pipeline gave up on.
+   */
+  void abandon() {
+    cleanup();
+  }
+
+  void setLoginPermit(LoginPipeline.Permit permit) {
+    loginPermit = permit;
+  }
+
+  private void sendKick() {
+    try {
+      DataOutputStream out = new DataOutputStream(extsocket.getOutputStream());
+      out.writeByte(0xff);
+      out.writeShort(kickMsg.length());
+      out.writeChars(kickMsg);
+      out.flush();
+    }
+    catch (IOException e) {
+    }
+  }
+
+  private synchronized void cleanup() {
     if (!closed) {
       closed = true;
+      if (loginPermit != null) {
+        loginPermit.release();
+      }
       entityId = 0;
       
 
@@ -514,7 +758,7 @@ public class Player {
 	}
   }
 
-  private final class Watchdog extends Thread {
+  private final class Watchdog implements Runnable {
     @Override
     public void run() {
       while (serverToClient.isAlive() || clientToServer.isAlive()) {
@@ -536,73 +780,6 @@ public class Player {
     }
   }
 
-  private static final class LocalAddressFactory {
-    private static final int[] octets = { 0, 0, 1 };
-    private static Boolean canCycle = null;
-
-    private synchronized String getNextAddress() {
-      if (!canCycle()) {
-        return "127.0.0.1";
-      }
-
-      if (octets[2] >= 255) {
-        if (octets[1] >= 255) {
-          if (octets[0] >= 255) {
-            octets[0] = 0;
-          }
-          else {
-            ++octets[0];
-          }
-          octets[1] = 0;
-        }
-        else {
-          ++octets[1];
-        }
-        octets[2] = 2;
-      }
-      else {
-        ++octets[2];
-      }
-
-      return "127." + octets[0] + "." + octets[1] + "." + octets[2];
-    }
-
-    private boolean canCycle() {
-      if (canCycle == null) {
-        InetAddress testDestination;
-        InetAddress testSource;
-        try {
-          testDestination = InetAddress.getByName(null);
-          testSource = InetAddress.getByName("127.0.1.2");
-        }
-        catch (UnknownHostException e) {
-          System.out.println("[SimpleServer] Notice: Unable to bind with 127.0.1.2.");
-
-          canCycle = false;
-          return false;
-        }
-
-        try {
-          Socket testSocket = new Socket(testDestination, 80, testSource, 0);
-          testSocket.close();
-        }
-        catch (BindException e) {
-          System.out.println("[SimpleServer] Notice: Unable to bind with 127.0.1.2.");
-
-          canCycle = false;
-          return false;
-        }
-        catch (IOException e) {
-          // Probably nothing listening on port 80
-        }
-
-        canCycle = true;
-      }
-
-      return canCycle;
-    }
-  }
-
   public void placingChest(Coordinate coord) {
       chestPlaced = coord;
   }
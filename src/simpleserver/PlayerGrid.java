@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Spatial hash of online player positions. Players are bucketed into square
+ * columns of cellSize blocks, so proximity queries only look at the cells
+ * around the query point instead of at every online player.
+ */
+public class PlayerGrid {
+  private static final Player[] EMPTY = new Player[0];
+
+  private final int cellSize;
+  private final ConcurrentMap<Long, Cell> cells;
+
+  public PlayerGrid(int cellSize) {
+    this.cellSize = Math.max(1, cellSize);
+    cells = new ConcurrentHashMap<Long, Cell>();
+  }
+
+  /**
+   * Position of a player as one immutable value, so readers never see x of
+   * one update and z of another.
+   */
+  public static final class Position {
+    public static final Position ORIGIN = new Position(0, 0, 0);
+
+    public final double x;
+    public final double y;
+    public final double z;
+
+    public Position(double x, double y, double z) {
+      this.x = x;
+      this.y = y;
+      this.z = z;
+    }
+
+    public double distanceSquared(double x, double y, double z) {
+      double dx = this.x - x;
+      double dy = this.y - y;
+      double dz = this.z - z;
+      return dx * dx + dy * dy + dz * dz;
+    }
+  }
+
+  public void add(Player player) {
+    Position position = player.getPosition();
+    insert(player, cellKey(position.x, position.z));
+  }
+
+  public void remove(Player player) {
+    Position position = player.getPosition();
+    delete(player, cellKey(position.x, position.z));
+  }
+
+  /**
+   * Moves a player whose position changed from previous to its current one.
+   * Calls for one player have to be serialized by the caller.
+   */
+  public void move(Player player, Position previous) {
+    Position position = player.getPosition();
+    long from = cellKey(previous.x, previous.z);
+    long to = cellKey(position.x, position.z);
+    if (from != to && delete(player, from)) {
+      insert(player, to);
+    }
+  }
+
+  /**
+   * Players strictly closer than radius to the given point.
+   */
+  public List<Player> withinRadius(Position center, double radius) {
+    List<Player> found = new ArrayList<Player>();
+    double radiusSquared = radius * radius;
+    long range = range(radius);
+    int cellX = cell(center.x);
+    int cellZ = cell(center.z);
+    if (scanOccupied(range)) {
+      for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+        if (inBox(entry.getKey(), cellX, cellZ, range)) {
+          collect(entry.getValue(), center, radiusSquared, null, false, found);
+        }
+      }
+      return found;
+    }
+
+    for (int cx = cellX - (int) range; cx <= cellX + range; ++cx) {
+      for (int cz = cellZ - (int) range; cz <= cellZ + range; ++cz) {
+        Cell cell = cells.get(key(cx, cz));
+        if (cell != null) {
+          collect(cell, center, radiusSquared, null, false, found);
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Up to count players other than exclude within maxRadius, closest first.
+   */
+  public List<Player> nearest(final Position center, int count,
+                              double maxRadius, Player exclude) {
+    List<Player> found = new ArrayList<Player>();
+    double maxRadiusSquared = maxRadius * maxRadius;
+    int cellX = cell(center.x);
+    int cellZ = cell(center.z);
+    int maxRange = (int) range(maxRadius);
+    if (scanOccupied(maxRange)) {
+      for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+        if (inBox(entry.getKey(), cellX, cellZ, maxRange)) {
+          collect(entry.getValue(), center, maxRadiusSquared, exclude, true, found);
+        }
+      }
+      sortByDistance(found, center);
+      return (found.size() > count) ? found.subList(0, count) : found;
+    }
+
+    for (int range = 0; range <= maxRange; ++range) {
+      for (int cx = cellX - range; cx <= cellX + range; ++cx) {
+        for (int cz = cellZ - range; cz <= cellZ + range; ++cz) {
+          if (Math.abs(cx - cellX) != range && Math.abs(cz - cellZ) != range) {
+            continue;
+          }
+          Cell cell = cells.get(key(cx, cz));
+          if (cell != null) {
+            collect(cell, center, maxRadiusSquared, exclude, true, found);
+          }
+        }
+      }
+
+      // Every cell of the next ring is at least range * cellSize away, so
+      // once that is beyond the count-th closest player nothing can change.
+      if (found.size() >= count) {
+        sortByDistance(found, center);
+        double bound = (double) range * cellSize;
+        Position last = found.get(count - 1).getPosition();
+        if (last.distanceSquared(center.x, center.y, center.z) <= bound * bound) {
+          break;
+        }
+      }
+    }
+
+    sortByDistance(found, center);
+    return (found.size() > count) ? found.subList(0, count) : found;
+  }
+
+  private long range(double radius) {
+    return (long) Math.min(Integer.MAX_VALUE / 4, Math.ceil(radius / cellSize));
+  }
+
+  /**
+   * True if a query over range cells in each direction would look at more
+   * cells than are occupied, in which case scanning the occupied ones is
+   * cheaper (a large radius or a small cell size).
+   */
+  private boolean scanOccupied(long range) {
+    long side = 2 * range + 1;
+    return side * side > cells.size();
+  }
+
+  /**
+   * True if the cell with the given key is at most range cells away from
+   * (cellX, cellZ) on both axes, so its members are worth looking at.
+   */
+  private static boolean inBox(long key, int cellX, int cellZ, long range) {
+    long x = (int) (key >> 32);
+    long z = (int) key;
+    return Math.abs(x - cellX) <= range && Math.abs(z - cellZ) <= range;
+  }
+
+  private static void collect(Cell cell, Position center, double radiusSquared,
+                              Player exclude, boolean inclusive,
+                              List<Player> found) {
+    for (Player player : cell.members) {
+      double distance = player.getPosition().distanceSquared(center.x, center.y, center.z);
+      if (player != exclude
+          && (distance < radiusSquared || (inclusive && distance == radiusSquared))) {
+        found.add(player);
+      }
+    }
+  }
+
+  private static void sortByDistance(List<Player> players, final Position center) {
+    Collections.sort(players, new Comparator<Player>() {
+      public int compare(Player a, Player b) {
+        return Double.compare(a.getPosition().distanceSquared(center.x, center.y, center.z),
+                              b.getPosition().distanceSquared(center.x, center.y, center.z));
+      }
+    });
+  }
+
+  private void insert(Player player, long key) {
+    while (true) {
+      Cell cell = cells.get(key);
+      if (cell == null) {
+        cell = new Cell();
+        Cell existing = cells.putIfAbsent(key, cell);
+        if (existing != null) {
+          cell = existing;
+        }
+      }
+      if (cell.add(player)) {
+        return;
+      }
+    }
+  }
+
+  private boolean delete(Player player, long key) {
+    Cell cell = cells.get(key);
+    if (cell == null) {
+      return false;
+    }
+    synchronized (cell) {
+      if (!cell.remove(player)) {
+        return false;
+      }
+      if (cell.members.length == 0) {
+        cell.dead = true;
+        cells.remove(key, cell);
+      }
+      return true;
+    }
+  }
+
+  private int cell(double coordinate) {
+    return (int) Math.floor(coordinate / cellSize);
+  }
+
+  private long cellKey(double x, double z) {
+    return key(cell(x), cell(z));
+  }
+
+  private static long key(int cellX, int cellZ) {
+    return ((long) cellX << 32) | (cellZ & 0xffffffffL);
+  }
+
+  private static final class Cell {
+    private volatile Player[] members = EMPTY;
+    private boolean dead = false;
+
+    private synchronized boolean add(Player player) {
+      if (dead) {
+        return false;
+      }
+      Player[] larger = new Player[members.length + 1];
+      System.arraycopy(members, 0, larger, 0, members.length);
+      larger[members.length] = player;
+      members = larger;
+      return true;
+    }
+
+    private synchronized boolean remove(Player player) {
+      Player[] current = members;
+      for (int c = 0; c < current.length; ++c) {
+        if (current[c] == player) {
+          Player[] smaller = new Player[current.length - 1];
+          System.arraycopy(current, 0, smaller, 0, c);
+          System.arraycopy(current, c + 1, smaller, c, current.length - c - 1);
+          members = smaller;
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -20,22 +20,38 @@
  */
 package simpleserver;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import simpleserver.options.Options;
 
 public class PlayerList {
+  private static final Player[] NO_PLAYERS = new Player[0];
+
   private final Options options;
   private final ConcurrentMap<String, Player> players;
 
+  // Rebuilt on every change and replaced as a whole, so readers never lock.
+  private volatile Player[] snapshot = NO_PLAYERS;
+  private volatile EntityIndex entities = new EntityIndex(NO_PLAYERS);
+  private volatile Map<String, Player[]> addresses = Collections.emptyMap();
+
   public PlayerList(Options options) {
     this.options = options;
     players = new ConcurrentHashMap<String, Player>();
   }
 
-  public synchronized Player[] getArray() {
-    return players.values().toArray(new Player[players.size()]);
+  /**
+   * Returns the players online when the list last changed. The array is
+   * shared and must not be modified.
+   */
+  public Player[] getArray() {
+    return snapshot;
   }
 
   public int size() {
@@ -53,12 +69,7 @@ public class PlayerList {
   }
 
   public Player findPlayer(int entityId) {
-    for (Player p : players.values()) {
-      if (p.getEntityId() == entityId) {
-        return p;
-      }
-    }
-    return null;
+    return entities.get(entityId);
   }
 
   public Player findPlayer(String prefix) {
@@ -75,13 +86,19 @@ public class PlayerList {
     return players.get(name.toLowerCase());
   }
 
+  public Player[] findPlayersByIP(String ipAddress) {
+    Player[] found = addresses.get(ipAddress);
+    return (found == null) ? NO_PLAYERS : found;
+  }
+
   public synchronized void removePlayer(Player player) {
     players.remove(player.getName().toLowerCase());
+    rebuild();
     notifyAll();
   }
 
   public synchronized void addPlayer(Player player) {
-    if (players.size() < options.getInt("maxPlayers")) {
+    if (players.size() < options.snapshot().maxPlayers) {
       players.put(player.getName().toLowerCase(), player);
     }
     else {
@@ -103,5 +120,85 @@ public class PlayerList {
         players.put(player.getName().toLowerCase(), player);
       }
     }
+    rebuild();
+  }
+
+  synchronized void entityIdChanged() {
+    if (snapshot.length > 0) {
+      entities = new EntityIndex(snapshot);
+    }
+  }
+
+  private void rebuild() {
+    Player[] current = players.values().toArray(new Player[players.size()]);
+
+    Map<String, List<Player>> byAddress = new HashMap<String, List<Player>>();
+    for (Player player : current) {
+      List<Player> list = byAddress.get(player.getIPAddress());
+      if (list == null) {
+        list = new ArrayList<Player>(1);
+        byAddress.put(player.getIPAddress(), list);
+      }
+      list.add(player);
+    }
+    Map<String, Player[]> addresses = new HashMap<String, Player[]>();
+    for (Map.Entry<String, List<Player>> entry : byAddress.entrySet()) {
+      List<Player> list = entry.getValue();
+      addresses.put(entry.getKey(), list.toArray(new Player[list.size()]));
+    }
+
+    snapshot = current;
+    entities = new EntityIndex(current);
+    this.addresses = addresses;
+  }
+
+  /**
+   * Immutable open-addressing table from entity id to player, so the lookup
+   * done for every Use Entity packet neither scans the list nor boxes the id.
+   */
+  private static final class EntityIndex {
+    private final int[] ids;
+    private final Player[] players;
+    private final int mask;
+
+    private EntityIndex(Player[] online) {
+      int capacity = 4;
+      while (capacity < online.length * 2) {
+        capacity <<= 1;
+      }
+      ids = new int[capacity];
+      players = new Player[capacity];
+      mask = capacity - 1;
+
+      for (Player player : online) {
+        int id = player.getEntityId();
+        if (id == 0) {
+          continue;
+        }
+        int slot = hash(id) & mask;
+        while (players[slot] != null && ids[slot] != id) {
+          slot = (slot + 1) & mask;
+        }
+        ids[slot] = id;
+        players[slot] = player;
+      }
+    }
+
+    private Player get(int id) {
+      int slot = hash(id) & mask;
+      Player player;
+      while ((player = players[slot]) != null) {
+        if (ids[slot] == id) {
+          return (player.getEntityId() == id) ? player : null;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return null;
+    }
+
+    private static int hash(int id) {
+      int hash = id * 0x9e3779b9;
+      return hash ^ (hash >>> 16);
+    }
   }
 }
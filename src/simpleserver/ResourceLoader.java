@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads resources in parallel. A resource starts loading once the resources
+ * it was registered with as dependencies have finished. Dependencies have to
+ * be registered first, so with tasks started in registration order a
+ * dependency is always running or done by the time something waits for it.
+ */
+public class ResourceLoader {
+  private final List<Entry> entries = new ArrayList<Entry>();
+  private final Map<Resource, Entry> byResource = new IdentityHashMap<Resource, Entry>();
+  private volatile String report = "Resources have not been loaded yet\n";
+
+  public void add(Resource resource, Resource... dependencies) {
+    List<Entry> required = new ArrayList<Entry>(dependencies.length);
+    for (Resource dependency : dependencies) {
+      Entry entry = byResource.get(dependency);
+      if (entry == null) {
+        throw new IllegalArgumentException(name(dependency)
+            + " has to be added before " + name(resource));
+      }
+      required.add(entry);
+    }
+
+    Entry entry = new Entry(resource, required);
+    entries.add(entry);
+    byResource.put(resource, entry);
+  }
+
+  public void loadAll() {
+    int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors() * 2));
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, entries.size()));
+    long start = System.nanoTime();
+    try {
+      for (final Entry entry : entries) {
+        entry.future = executor.submit(new Callable<Long>() {
+          public Long call() throws Exception {
+            for (Entry dependency : entry.dependencies) {
+              dependency.future.get();
+            }
+            long started = System.nanoTime();
+            entry.resource.load();
+            return System.nanoTime() - started;
+          }
+        });
+      }
+
+      RuntimeException failure = null;
+      StringBuilder output = new StringBuilder();
+      for (Entry entry : entries) {
+        try {
+          long nanos = entry.future.get();
+          output.append(String.format("%-16s %6d ms\n", name(entry.resource),
+                                      nanos / 1000000));
+        }
+        catch (ExecutionException e) {
+          output.append(String.format("%-16s failed\n", name(entry.resource)));
+          if (failure == null) {
+            failure = asRuntimeException(e.getCause());
+          }
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+      }
+
+      long total = (System.nanoTime() - start) / 1000000;
+      output.append(String.format("%-16s %6d ms\n", "Total", total));
+      report = output.toString();
+      System.out.println("[SimpleServer] Loaded " + entries.size()
+          + " resources in " + total + " ms");
+
+      if (failure != null) {
+        throw failure;
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Load time of every resource during the last loadAll().
+   */
+  public String report() {
+    return report;
+  }
+
+  private static RuntimeException asRuntimeException(Throwable cause) {
+    if (cause instanceof ExecutionException) {
+      // A dependency failed; its own entry reports the cause.
+      cause = cause.getCause();
+    }
+    if (cause instanceof RuntimeException) {
+      return (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new RuntimeException(cause);
+  }
+
+  private static String name(Resource resource) {
+    if (resource instanceof LazyResource) {
+      return name(((LazyResource<?>) resource).resource()) + " (lazy)";
+    }
+    return resource.getClass().getSimpleName();
+  }
+
+  private static final class Entry {
+    private final Resource resource;
+    private final List<Entry> dependencies;
+    private Future<Long> future;
+
+    private Entry(Resource resource, List<Entry> dependencies) {
+      this.resource = resource;
+      this.dependencies = dependencies;
+    }
+  }
+}
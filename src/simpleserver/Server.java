@@ -22,9 +22,11 @@ package simpleserver;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Semaphore;
@@ -41,10 +43,12 @@ import simpleserver.config.KitList;
 import simpleserver.config.MOTD;
 import simpleserver.config.MemberList;
 import simpleserver.config.MuteList;
+import simpleserver.config.PersistenceService;
 import simpleserver.config.RobotList;
 import simpleserver.config.Rules;
 import simpleserver.config.Stats;
 import simpleserver.config.WhiteList;
+import simpleserver.log.ActivityStore;
 import simpleserver.log.AdminLog;
 import simpleserver.log.ConnectionLog;
 import simpleserver.log.ErrorLog;
@@ -52,12 +56,15 @@ import simpleserver.minecraft.MinecraftWrapper;
 import simpleserver.options.Language;
 import simpleserver.options.Options;
 import simpleserver.rcon.RconServer;
+import simpleserver.stream.ChatFormatter;
+import simpleserver.stream.TunnelSelector;
 import simpleserver.thread.AutoBackup;
 import simpleserver.thread.AutoRestart;
 import simpleserver.thread.AutoRun;
 import simpleserver.thread.AutoSave;
 import simpleserver.thread.RequestTracker;
 import simpleserver.thread.SystemInputQueue;
+import simpleserver.thread.ThreadLauncher;
 
 public class Server {
   
@@ -72,10 +79,10 @@ public class Server {
   public GroupList groups;
   public MemberList members;
   private RobotList robots;
-  private MOTD motd;
-  public KitList kits;
+  private LazyResource<MOTD> motd;
+  private LazyResource<KitList> kits;
   public ChestList chests;
-  private Rules rules;
+  private LazyResource<Rules> rules;
   public IPMemberList ipMembers;
   public IPBanList ipBans;
   public WhiteList whitelist;
@@ -85,12 +92,15 @@ public class Server {
   public Stats stats;
 
   private List<Resource> resources;
+  private ResourceLoader resourceLoader;
   public PlayerList playerList;
+  public PlayerGrid playerGrid;
   private CommandParser commandParser;
 
   private AdminLog adminLog;
   private ErrorLog errorLog;
   private ConnectionLog connectionLog;
+  public ActivityStore activity;
   private SystemInputQueue systemInput;
 
   private MinecraftWrapper minecraft;
@@ -100,6 +110,10 @@ public class Server {
   private AutoSave autosave;
   private AutoRestart autoRestart;
   public RequestTracker requestTracker;
+  public LoginPipeline loginPipeline;
+  public BackendPool backendPool;
+  public TunnelSelector tunnelSelector;
+  public ChatFormatter chatFormatter;
 
   private boolean run = true;
   private boolean restart = false;
@@ -162,27 +176,33 @@ public class Server {
   }
 
   public String getMOTD() {
-    return motd.getMOTD();
+    return motd.get().getMOTD();
   }
 
   public String getRules() {
-    return rules.getRules();
+    return rules.get().getRules();
+  }
+
+  public KitList getKits() {
+    return kits.get();
   }
 
   public boolean isIPBanned(String ipAddress) {
     return ipBans.isBanned(ipAddress);
   }
 
+  public boolean isIPBanned(InetAddress address) {
+    return ipBans.isBanned(address);
+  }
+
   public void banKickIP(String ipAddress, String reason) {
     if (!isIPBanned(ipAddress)) {
       ipBans.addBan(ipAddress);
     }
     adminLog("IP Address " + ipAddress + " was banned:\t " + reason);
-    for (Player player : playerList.getArray()) {
-      if (player.getIPAddress().equals(ipAddress)) {
-        player.kick(reason);
-        adminLog("Player " + player.getName() + " was ip-banned:\t " + reason);
-      }
+    for (Player player : playerList.findPlayersByIP(ipAddress)) {
+      player.kick(reason);
+      adminLog("Player " + player.getName() + " was ip-banned:\t " + reason);
     }
   }
 
@@ -213,15 +233,18 @@ public class Server {
   }
 
   public void loadResources() {
-    for (Resource resource : resources) {
-      resource.load();
-    }
+    resourceLoader.loadAll();
+  }
+
+  public String getLoadReport() {
+    return resourceLoader.report();
   }
 
   public void saveResources() {
     for (Resource resource : resources) {
-      resource.save();
+      PersistenceService.save(resource);
     }
+    PersistenceService.flush();
   }
 
   public String findName(String prefix) {
@@ -251,13 +274,11 @@ public class Server {
   public int localChat(Player player, String msg) {
     String chat = "\u00a77" + player.getName() + " says:\u00a7f " + msg;
     int localPlayers = 0;
-    int radius = options.getInt("localChatRadius");
-    for (Player friend : playerList.getArray()) {
-      if (friend.distanceTo(player) < radius) {
-        friend.addMessage(chat);
-        if (player != friend) {
-          localPlayers++;
-        }
+    int radius = options.snapshot().localChatRadius;
+    for (Player friend : playerGrid.withinRadius(player.getPosition(), radius)) {
+      friend.addMessage(chat);
+      if (player != friend) {
+        localPlayers++;
       }
     }
     return localPlayers;
@@ -332,30 +353,39 @@ public class Server {
 
   private void initialize() {
     resources = new LinkedList<Resource>();
-    resources.add(l = new Language());
-    resources.add(options = new Options());
-    resources.add(robots = new RobotList());
-    resources.add(ipMembers = new IPMemberList(options));
-    resources.add(chests = new ChestList());
-    resources.add(commands = new CommandList());
-    resources.add(blockFirewall = new BlockList());
-    resources.add(groups = new GroupList());
-    resources.add(members = new MemberList(this));
-    resources.add(motd = new MOTD());
-    resources.add(rules = new Rules());
-    resources.add(kits = new KitList(this));
-    resources.add(ipBans = new IPBanList());
-    resources.add(whitelist = new WhiteList());
-    resources.add(mutelist = new MuteList());
-    resources.add(giveAliasList = new GiveAliasList());
-    resources.add(stats = new Stats());
+    resourceLoader = new ResourceLoader();
+    addResource(l = new Language());
+    addResource(options = new Options());
+    addResource(robots = new RobotList());
+    addResource(ipMembers = new IPMemberList(options), options);
+    addResource(chests = new ChestList());
+    // Options converts old rank settings into command-list.txt
+    addResource(commands = new CommandList(), options);
+    addResource(blockFirewall = new BlockList());
+    addResource(groups = new GroupList());
+    addResource(members = new MemberList(this), options, groups);
+    addResource(motd = new LazyResource<MOTD>(new MOTD()));
+    addResource(rules = new LazyResource<Rules>(new Rules()));
+    addResource(kits = new LazyResource<KitList>(new KitList(this)));
+    addResource(ipBans = new IPBanList());
+    addResource(whitelist = new WhiteList());
+    addResource(mutelist = new MuteList());
+    addResource(giveAliasList = new GiveAliasList());
+    addResource(stats = new Stats());
 
     systemInput = new SystemInputQueue();
     adminLog = new AdminLog();
     errorLog = new ErrorLog();
     connectionLog = new ConnectionLog();
+    activity = new ActivityStore();
 
     commandParser = new CommandParser(options, commands);
+    chatFormatter = new ChatFormatter(this);
+  }
+
+  private void addResource(Resource resource, Resource... dependencies) {
+    resources.add(resource);
+    resourceLoader.add(resource, dependencies);
   }
 
   private void cleanup() {
@@ -363,6 +393,7 @@ public class Server {
     adminLog.stop();
     errorLog.stop();
     connectionLog.stop();
+    activity.stop();
     ((TimeCommand) commandParser.getPlayerCommand(TimeCommand.class)).unfreeze();
   }
 
@@ -370,8 +401,27 @@ public class Server {
     restart = false;
 
     loadResources();
+    playerGrid = new PlayerGrid(options.getInt("localGridCellSize"));
+    if (ThreadLauncher.configure(options.get("threadMode")).equals("virtual")) {
+      System.out.println("[SimpleServer] Using virtual threads for connections");
+    }
     playerList = new PlayerList(options);
     requestTracker = new RequestTracker(this);
+    loginPipeline = new LoginPipeline(this);
+
+    if (options.get("tunnelMode").equals("nio")) {
+      try {
+        tunnelSelector = new TunnelSelector(options.getInt("tunnelWorkers"));
+      }
+      catch (IOException e) {
+        System.out.println("[SimpleServer] " + e);
+        System.out.println("[SimpleServer] Could not start tunnel selector, falling back to threads");
+        tunnelSelector = null;
+      }
+    }
+    else {
+      tunnelSelector = null;
+    }
 
     minecraft = new MinecraftWrapper(this, options, systemInput);
     if (!minecraft.prepareServerJar()) {
@@ -387,6 +437,7 @@ public class Server {
       // Already on track to stop/restart.
     }
 
+    backendPool = new BackendPool(this);
     rconServer = new RconServer(this);
     autoBackup = new AutoBackup(this);
     autosave = new AutoSave(this);
@@ -411,16 +462,24 @@ public class Server {
       }
     }
 
+    // No new players may start once the kick sweep has run.
+    loginPipeline.stop();
     kickAllPlayers();
     rconServer.stop();
     autoBackup.stop();
     autosave.stop();
     autoRestart.stop();
     requestTracker.stop();
+    backendPool.stop();
     c10t.stop();
     saveResources();
 
     playerList.waitUntilEmpty();
+    // Players leaving after saveResources() still update their statistics.
+    PersistenceService.flush();
+    if (tunnelSelector != null) {
+      tunnelSelector.stop();
+    }
     minecraft.stop();
     System.out.println("[SimpleServer] Server stopped successfully!");
     saveLock.release();
@@ -453,7 +512,13 @@ public class Server {
         }
 
         try {
-          socket = new ServerSocket(port, 0, address);
+          if (tunnelSelector != null) {
+            socket = ServerSocketChannel.open().socket();
+            socket.bind(new InetSocketAddress(address, port));
+          }
+          else {
+            socket = new ServerSocket(port, 0, address);
+          }
         }
         catch (IOException e) {
           System.out.println("[SimpleServer] " + e);
@@ -484,7 +549,15 @@ public class Server {
               }
               break;
             }
-            new Player(client, Server.this);
+            if (!requestTracker.addRequest(client.getInetAddress())) {
+              try {
+                client.close();
+              }
+              catch (IOException e) {
+              }
+              continue;
+            }
+            loginPipeline.submit(client);
           }
         }
         finally {
@@ -21,6 +21,7 @@
 package simpleserver.command;
 
 import simpleserver.Player;
+import simpleserver.PlayerGrid.Position;
 
 public class GPSCommand extends OnlinePlayerArgCommand {
   public GPSCommand() {
@@ -38,9 +39,10 @@ public class GPSCommand extends OnlinePlayerArgCommand {
       name = target.getName() + "'s";
     }
 
+    Position position = target.getPosition();
     player.addMessage("\u00a77" + name + " Latitude: \u00a7f"
-        + (int) target.getX() + "\u00a77 Longitude: \u00a7f"
-        + (int) target.getZ() + "\u00a77 Altitude: \u00a7f"
-        + (int) target.getY());
+        + (int) position.x + "\u00a77 Longitude: \u00a7f"
+        + (int) position.z + "\u00a77 Altitude: \u00a7f"
+        + (int) position.y);
   }
 }
@@ -31,12 +31,12 @@ public class KitCommand extends AbstractCommand implements PlayerCommand {
     String[] arguments = extractArguments(message);
 
     if (arguments.length > 0) {
-      if (!player.getServer().kits.giveKit(player, arguments[0])) {
+      if (!player.getServer().getKits().giveKit(player, arguments[0])) {
         player.addMessage("\u00a7cInvalid kit name.");
       }
     }
     else {
-      player.getServer().kits.listKits(player);
+      player.getServer().getKits().listKits(player);
     }
   }
 }
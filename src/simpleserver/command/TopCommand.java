@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.command;
+
+import java.util.List;
+
+import simpleserver.Player;
+import simpleserver.config.Leaderboard;
+import simpleserver.config.Stats;
+import simpleserver.config.Stats.Metric;
+
+public class TopCommand extends AbstractCommand implements PlayerCommand {
+  private static final int PAGE_SIZE = 8;
+
+  public TopCommand() {
+    super("top minutes|placed|destroyed [PAGE]",
+          "Show the players with the best statistics");
+  }
+
+  public void execute(Player player, String message) {
+    String[] arguments = extractArguments(message);
+    Metric metric = Metric.MINUTES;
+    if (arguments.length > 0) {
+      metric = Metric.parse(arguments[0]);
+      if (metric == null) {
+        player.addMessage("\u00a7cUnknown statistic. Use minutes, placed or destroyed.");
+        return;
+      }
+    }
+
+    int page = 1;
+    if (arguments.length > 1) {
+      try {
+        page = Math.max(1, Integer.parseInt(arguments[1]));
+      }
+      catch (NumberFormatException e) {
+        player.addMessage("\u00a7cInvalid page number!");
+        return;
+      }
+    }
+
+    Stats stats = player.getServer().stats;
+    Leaderboard leaderboard = stats.getLeaderboard(metric);
+    // Pages past the end are all empty; clamping keeps the rank from overflowing.
+    page = Math.min(page, leaderboard.size() / PAGE_SIZE + 1);
+    int first = (page - 1) * PAGE_SIZE + 1;
+    List<Leaderboard.Entry> entries = leaderboard.top(first, PAGE_SIZE);
+    if (entries.isEmpty()) {
+      player.addMessage("\u00a77No statistics on this page.");
+      return;
+    }
+
+    player.addMessage("\u00a77Top " + metric.name().toLowerCase() + " (page "
+        + page + "):");
+    int rank = first;
+    for (Leaderboard.Entry entry : entries) {
+      player.addMessage("\u00a77" + rank++ + ". \u00a7f" + entry.name
+          + "\u00a77 " + entry.score);
+    }
+
+    int own = stats.getRank(player.getName(), metric);
+    if (own > 0) {
+      player.addMessage("\u00a77You are ranked " + own + " of "
+          + leaderboard.size() + ".");
+    }
+  }
+}
@@ -40,9 +40,8 @@ public class UnlockCommand extends AbstractCommand implements PlayerCommand {
     } else {
       List<Chest> chests = player.getServer().chests.getChestsByName(name);
       for(Chest chest : chests) {
-        chest.unlock();
+        player.getServer().chests.unlock(chest);
       }
-      player.getServer().chests.save();
       if(chests.size() > 1) {
         player.addMessage("\u00a77" + chests.size() + " chests have been unlocked!");
       } else {
@@ -32,23 +32,37 @@ public abstract class AbstractConfig implements Resource {
   private static final String folder = "simpleserver";
 
   private String filename;
-  private String header;
+  private volatile String header;
 
   protected AbstractConfig(String filename) {
     this.filename = filename;
-
-    loadHeader();
   }
 
   public abstract void save();
 
   public abstract void load();
 
+  /**
+   * Has the config saved by the background writer. Mutators call this rather
+   * than save() so they never wait for the disk.
+   */
+  protected void markDirty() {
+    PersistenceService.markDirty(this);
+  }
+
+  protected void markDirty(long delay) {
+    PersistenceService.markDirty(this, delay);
+  }
+
   protected String getFilename() {
     return filename;
   }
 
   protected String getHeader() {
+    // Only needed for saving, so it is read on first use.
+    if (header == null) {
+      loadHeader();
+    }
     return header;
   }
 
@@ -68,6 +82,11 @@ public abstract class AbstractConfig implements Resource {
     return file;
   }
 
+  protected File getTemporaryFile() {
+    File file = getFile();
+    return new File(file.getPath() + ".tmp");
+  }
+
   protected String readFully(InputStream input) {
     byte[] buffer;
     try {
@@ -97,7 +116,7 @@ public abstract class AbstractConfig implements Resource {
                                               + "-header");
   }
 
-  private void loadHeader() {
+  private synchronized void loadHeader() {
     InputStream headerStream = getHeaderResourceStream();
     try {
       header = readFully(headerStream);
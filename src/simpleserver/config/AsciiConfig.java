@@ -36,9 +36,9 @@ public abstract class AsciiConfig extends AbstractConfig {
   }
 
   @Override
-  public void save() {
+  public synchronized void save() {
     boolean success = false;
-    File outFile = getFile();
+    File outFile = getTemporaryFile();
     try {
       Writer writer = new BufferedWriter(new FileWriter(outFile));
 
@@ -57,6 +57,9 @@ public abstract class AsciiConfig extends AbstractConfig {
       e.printStackTrace();
     }
 
+    if (success) {
+      success = PersistenceService.replace(outFile, getFile());
+    }
     if (!success) {
       System.out.println("Failed to save " + getFilename() + "!");
     }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of chest changes. Each record is a complete chest line in
+ * the chest-list.txt format, so replaying the journal over the snapshot
+ * simply overwrites older states. Records are written by a background
+ * thread; the journal is folded into the snapshot (compacted) when it grows
+ * large, periodically, and whenever the chest list is saved.
+ */
+final class ChestJournal {
+  private static final int COMPACT_RECORDS = 10000;
+  private static final long COMPACT_INTERVAL = 10 * 60 * 1000;
+  private static final long POLL_INTERVAL = 1000;
+
+  private final ChestList chests;
+  private final BlockingQueue<Record> records;
+  private final Object fileLock = new Object();
+
+  // Bumped by every compaction; records stamped with an older generation
+  // are already part of the snapshot.
+  private volatile long generation = 0;
+
+  private Writer output;
+  private int journalled = 0;
+  private long lastCompaction = System.currentTimeMillis();
+  private Appender appender;
+
+  ChestJournal(ChestList chests) {
+    this.chests = chests;
+    records = new LinkedBlockingQueue<Record>();
+  }
+
+  void append(String record) {
+    records.add(new Record(record, generation));
+    startWriter();
+  }
+
+  /**
+   * Replays the journal left by a previous run. Returns false if there was
+   * none.
+   */
+  boolean replay() {
+    File file = journalFile();
+    if (!file.exists()) {
+      return false;
+    }
+
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          chests.loadLine(line);
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (FileNotFoundException e) {
+      return false;
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+      System.out.println("Failed to replay " + file.getName() + "!");
+    }
+    return true;
+  }
+
+  /**
+   * Writes all chests to the snapshot file and empties the journal.
+   */
+  void compact() {
+    synchronized (fileLock) {
+      // Everything still queued is already part of the chests in memory,
+      // and therefore of the snapshot written below. The appender may hold
+      // some of it in a batch; write() drops those by their generation.
+      generation++;
+      records.clear();
+
+      File snapshot = chests.getFile();
+      File temporary = chests.getTemporaryFile();
+      boolean success = false;
+      try {
+        Writer writer = new BufferedWriter(new FileWriter(temporary));
+        try {
+          writer.write(chests.getHeader());
+          writer.write(chests.saveString());
+          writer.flush();
+          success = true;
+        }
+        finally {
+          writer.close();
+        }
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+      }
+
+      if (success) {
+        success = PersistenceService.replace(temporary, snapshot);
+      }
+      if (!success) {
+        System.out.println("Failed to save " + snapshot.getName() + "!");
+        return;
+      }
+
+      closeOutput();
+      journalFile().delete();
+      journalled = 0;
+      lastCompaction = System.currentTimeMillis();
+    }
+  }
+
+  private void write(List<Record> batch) {
+    synchronized (fileLock) {
+      try {
+        int written = 0;
+        for (Record record : batch) {
+          if (record.generation != generation) {
+            continue;
+          }
+          if (output == null) {
+            output = new BufferedWriter(new FileWriter(journalFile(), true));
+          }
+          output.write(record.line);
+          written++;
+        }
+        if (output != null) {
+          output.flush();
+        }
+        journalled += written;
+      }
+      catch (IOException e) {
+        e.printStackTrace();
+        System.out.println("Failed to write " + journalFile().getName()
+            + ", saving chest list instead.");
+        closeOutput();
+        compact();
+      }
+    }
+  }
+
+  private boolean needsCompaction() {
+    synchronized (fileLock) {
+      return journalled >= COMPACT_RECORDS
+          || (journalled > 0 && System.currentTimeMillis() - lastCompaction > COMPACT_INTERVAL);
+    }
+  }
+
+  private void closeOutput() {
+    if (output != null) {
+      try {
+        output.close();
+      }
+      catch (IOException e) {
+      }
+      output = null;
+    }
+  }
+
+  private File journalFile() {
+    File snapshot = chests.getFile();
+    String name = snapshot.getName();
+    int dot = name.lastIndexOf('.');
+    if (dot > 0) {
+      name = name.substring(0, dot);
+    }
+    return new File(snapshot.getParentFile(), name + ".journal");
+  }
+
+  private synchronized void startWriter() {
+    if (appender == null) {
+      appender = new Appender();
+      appender.setDaemon(true);
+      appender.setName("ChestJournal");
+      appender.start();
+    }
+  }
+
+  private static final class Record {
+    private final String line;
+    private final long generation;
+
+    private Record(String line, long generation) {
+      this.line = line;
+      this.generation = generation;
+    }
+  }
+
+  private final class Appender extends Thread {
+    @Override
+    public void run() {
+      List<Record> batch = new ArrayList<Record>();
+      while (true) {
+        try {
+          Record record = records.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+          if (record != null) {
+            batch.add(record);
+            records.drainTo(batch);
+            write(batch);
+            batch.clear();
+          }
+        }
+        catch (InterruptedException e) {
+        }
+
+        if (needsCompaction()) {
+          compact();
+        }
+      }
+    }
+  }
+}
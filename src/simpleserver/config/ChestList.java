@@ -21,9 +21,11 @@
 package simpleserver.config;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -31,30 +33,37 @@ import simpleserver.Coordinate;
 import simpleserver.Player;
 
 public class ChestList extends AsciiConfig {
-  private final ConcurrentMap<Coordinate, Chest> locations;
+  private final ChestMap locations;
+  private final ChestJournal journal;
+  private volatile boolean loading = false;
+
+  // Secondary indexes, changed only while holding indexLock.
+  private final Object indexLock = new Object();
+  private final ConcurrentMap<String, Set<Chest>> byOwner;
+  private final ConcurrentMap<String, Set<Chest>> byName;
+  private final ConcurrentMap<Long, Set<Chest>> byChunk;
 
   public ChestList() {
     super("chest-list.txt");
 
-    locations = new ConcurrentHashMap<Coordinate, Chest>();
+    locations = new ChestMap();
+    journal = new ChestJournal(this);
+    byOwner = new ConcurrentHashMap<String, Set<Chest>>();
+    byName = new ConcurrentHashMap<String, Set<Chest>>();
+    byChunk = new ConcurrentHashMap<Long, Set<Chest>>();
   }
 
   public boolean giveLock(String player, int x, byte y, int z,
                         boolean isGroupLock, String name) {
-    Coordinate coordinate = new Coordinate(x, y, z);
-    if (locations.containsKey(coordinate)) {
-      locations.remove(coordinate);
-    }
-
-    Chest chest = new Chest(player, coordinate, isGroupLock, name);
-    locations.put(coordinate, chest);
+    Chest chest = new Chest(player, new Coordinate(x, y, z), isGroupLock, name);
+    add(chest);
 
-    save();
+    changed(chest);
     return true;
   }
 
-  public synchronized boolean giveLock(Player player, int x, byte y, int z,
-                                       boolean isGroupLock, String name) {
+  public boolean giveLock(Player player, int x, byte y, int z,
+                          boolean isGroupLock, String name) {
     return giveLock(player.getName(), x, y, z, isGroupLock, name);
   }
   
@@ -63,7 +72,7 @@ public class ChestList extends AsciiConfig {
   }
 
   public boolean isChest(int x, byte y, int z) {
-    return locations.containsKey(new Coordinate(x, y, z));
+    return locations.contains(x, y, z);
   }
   
   public boolean canOpen(Player player, Coordinate coords) {
@@ -75,31 +84,27 @@ public class ChestList extends AsciiConfig {
   }
   
   public Chest adjacentChest(int x, byte y, int z) {
-    Chest chest = chestAt(new Coordinate(x + 1, y, z));
+    Chest chest = locations.get(x + 1, y, z);
     if(chest == null)
-      chest = chestAt(new Coordinate(x - 1, y, z));
+      chest = locations.get(x - 1, y, z);
     if(chest == null)
-      chest = chestAt(new Coordinate(x, y, z + 1));
+      chest = locations.get(x, y, z + 1);
     if(chest == null)
-      chest = chestAt(new Coordinate(x, y, z - 1));
+      chest = locations.get(x, y, z - 1);
     return chest;
   }
   
   private Chest chestAt(Coordinate coord) {
-    if(locations.containsKey(coord)) {
-      return locations.get(coord);
-    }
-    return null;
+    return locations.get(coord.x, coord.y, coord.z);
   }
 
   public boolean canOpen(Player player, int x, byte y, int z) {
-    Coordinate coordinate = new Coordinate(x, y, z);
-    Chest chest = chestAt(coordinate);
+    Chest chest = locations.get(x, y, z);
     return (chest == null) || (chest.ownedBy(player) || chest.isOpen());
   }
 
   public boolean isLocked(int x, byte y, int z) {
-    Chest chest = locations.get(new Coordinate(x, y, z));
+    Chest chest = locations.get(x, y, z);
     return chest != null && !chest.isOpen();
   }
 
@@ -107,17 +112,28 @@ public class ChestList extends AsciiConfig {
     return !(coords == null) && isLocked(coords.x, coords.y, coords.z);
   }
 
-  public synchronized void releaseLock(int x, byte y, int z) {
-    Chest chest = chestAt(new Coordinate(x,y,z));
+  public void releaseLock(int x, byte y, int z) {
+    Chest chest = locations.get(x, y, z);
     if(chest != null) {
       chest.unlock();
-      save();
+      changed(chest);
     }
   }
+
+  public void unlock(Chest chest) {
+    chest.unlock();
+    changed(chest);
+  }
+
+  public void lock(Chest chest, Player player, String name) {
+    chest.lock(player);
+    chest.rename(name);
+    changed(chest);
+  }
   
   public Map<String, Integer> chestList(Player player) {
     Map<String, Integer> list = new HashMap<String, Integer>();
-    for(Chest chest : locations.values()) {
+    for(Chest chest : getChestsByOwner(player.getName())) {
       if(chest.ownedBy(player)) {
         if(list.containsKey(chest.name)) {
           list.put(chest.name, list.get(chest.name)+1);
@@ -135,33 +151,189 @@ public class ChestList extends AsciiConfig {
   }
   
   public List<Chest> getChestsByName(String name) {
+    return lookup(byName, name);
+  }
+
+  public List<Chest> getChestsByOwner(String owner) {
+    return lookup(byOwner, owner.toLowerCase());
+  }
+
+  /**
+   * Chests with x between x1 and x2 and z between z1 and z2 (inclusive).
+   */
+  public List<Chest> getChestsInArea(int x1, int z1, int x2, int z2) {
+    int minX = Math.min(x1, x2);
+    int maxX = Math.max(x1, x2);
+    int minZ = Math.min(z1, z2);
+    int maxZ = Math.max(z1, z2);
+
+    List<Set<Chest>> buckets = new ArrayList<Set<Chest>>();
+    long chunks = ((long) (maxX >> 4) - (minX >> 4) + 1)
+        * ((long) (maxZ >> 4) - (minZ >> 4) + 1);
+    if (chunks > byChunk.size()) {
+      buckets.addAll(byChunk.values());
+    }
+    else {
+      for (int cx = minX >> 4; cx <= maxX >> 4; ++cx) {
+        for (int cz = minZ >> 4; cz <= maxZ >> 4; ++cz) {
+          Set<Chest> bucket = byChunk.get(chunkKey(cx, cz));
+          if (bucket != null) {
+            buckets.add(bucket);
+          }
+        }
+      }
+    }
+
     List<Chest> chests = new ArrayList<Chest>();
-    for(Chest chest : locations.values()) {
-      if(chest.name().equals(name)) {
-        chests.add(chest);
+    for (Set<Chest> bucket : buckets) {
+      for (Chest chest : bucket) {
+        Coordinate coordinate = chest.coordinate;
+        if (coordinate.x >= minX && coordinate.x <= maxX
+            && coordinate.z >= minZ && coordinate.z <= maxZ) {
+          chests.add(chest);
+        }
       }
     }
     return chests;
   }
 
+  /**
+   * Unlocks every chest locked by owner and returns how many there were.
+   */
+  public int releaseLocks(String owner) {
+    int released = 0;
+    for (Chest chest : getChestsByOwner(owner)) {
+      if (!chest.isOpen()) {
+        unlock(chest);
+        released++;
+      }
+    }
+    return released;
+  }
+
   public void unlock(Coordinate coords) {
     Chest chest = chestAt(coords);
     if(chest != null) {
-       chest.unlock();
+       unlock(chest);
        chest = this.adjacentChest(coords);
        if(chest != null) {
-         chest.unlock();
+         unlock(chest);
        }
-       save();
     }
   }
   
 
+  /**
+   * Writes the full chest list and empties the journal. Lock changes
+   * themselves are only appended to the journal in the background.
+   */
+  @Override
+  public void save() {
+    if (!loading) {
+      journal.compact();
+    }
+  }
+
   @Override
   public void load() {
     locations.clear();
+    synchronized (indexLock) {
+      byOwner.clear();
+      byName.clear();
+      byChunk.clear();
+    }
+
+    boolean replayed;
+    loading = true;
+    try {
+      super.load();
+      replayed = journal.replay();
+    }
+    finally {
+      loading = false;
+    }
+
+    if (replayed || !getFile().exists()) {
+      journal.compact();
+    }
+  }
+
+  private void add(Chest chest) {
+    Coordinate coordinate = chest.coordinate;
+    synchronized (indexLock) {
+      chest.list = this;
+      Chest previous = locations.put(coordinate.x, coordinate.y, coordinate.z,
+                                     chest);
+      if (previous != null) {
+        previous.list = null;
+        remove(byOwner, previous.owner.toLowerCase(), previous);
+        remove(byName, previous.name, previous);
+        remove(byChunk, chunkKey(coordinate.x >> 4, coordinate.z >> 4), previous);
+      }
+      add(byOwner, chest.owner.toLowerCase(), chest);
+      add(byName, chest.name, chest);
+      add(byChunk, chunkKey(coordinate.x >> 4, coordinate.z >> 4), chest);
+    }
+  }
+
+  private void changeOwner(Chest chest, String owner) {
+    synchronized (indexLock) {
+      if (chest.list == this) {
+        remove(byOwner, chest.owner.toLowerCase(), chest);
+        add(byOwner, owner.toLowerCase(), chest);
+      }
+      chest.owner = owner;
+    }
+  }
+
+  private void changeName(Chest chest, String name) {
+    synchronized (indexLock) {
+      if (chest.list == this) {
+        remove(byName, chest.name, chest);
+        add(byName, name, chest);
+      }
+      chest.name = name;
+    }
+  }
 
-    super.load();
+  private static <K> void add(ConcurrentMap<K, Set<Chest>> index, K key,
+                              Chest chest) {
+    Set<Chest> chests = index.get(key);
+    if (chests == null) {
+      chests = Collections.newSetFromMap(new ConcurrentHashMap<Chest, Boolean>());
+      index.put(key, chests);
+    }
+    chests.add(chest);
+  }
+
+  private static <K> void remove(ConcurrentMap<K, Set<Chest>> index, K key,
+                                 Chest chest) {
+    Set<Chest> chests = index.get(key);
+    if (chests != null) {
+      chests.remove(chest);
+      if (chests.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  private static <K> List<Chest> lookup(ConcurrentMap<K, Set<Chest>> index,
+                                        K key) {
+    Set<Chest> chests = index.get(key);
+    if (chests == null) {
+      return new ArrayList<Chest>();
+    }
+    return new ArrayList<Chest>(chests);
+  }
+
+  private static Long chunkKey(int chunkX, int chunkZ) {
+    return ((long) chunkX << 32) | (chunkZ & 0xffffffffL);
+  }
+
+  private void changed(Chest chest) {
+    StringBuilder record = new StringBuilder();
+    appendChest(record, chest);
+    journal.append(record.toString());
   }
 
   @Override
@@ -193,51 +365,60 @@ public class ChestList extends AsciiConfig {
         name = (tokens[0].equals("-")) ? "" : "Locked Chest";
       }
       
-      giveLock(tokens[0], x, y, z, Boolean.parseBoolean(tokens[1]), name);
+      add(new Chest(tokens[0], new Coordinate(x, y, z),
+                    Boolean.parseBoolean(tokens[1]), name));
     }
   }
 
   @Override
   protected String saveString() {
     StringBuilder output = new StringBuilder();
-    for (Chest chest : locations.values().toArray(new Chest[0])) {
-      output.append(chest.owner);
-      output.append(",");
-      output.append(chest.isGroup);
-      output.append(",");
-      output.append(chest.coordinate.x);
-      output.append(",");
-      output.append(chest.coordinate.y);
-      output.append(",");
-      output.append(chest.coordinate.z);
-      output.append(",");
-      output.append(chest.name());
-      output.append("\n");
+    for (Chest chest : locations.values()) {
+      appendChest(output, chest);
     }
     return output.toString();
   }
 
+  private static void appendChest(StringBuilder output, Chest chest) {
+    output.append(chest.owner);
+    output.append(",");
+    output.append(chest.isGroup);
+    output.append(",");
+    output.append(chest.coordinate.x);
+    output.append(",");
+    output.append(chest.coordinate.y);
+    output.append(",");
+    output.append(chest.coordinate.z);
+    output.append(",");
+    output.append(chest.name());
+    output.append("\n");
+  }
+
 
   public static final class Chest {
-    private String owner;
+    private volatile String owner;
     private final Coordinate coordinate;
     private final boolean isGroup;
-    private String name;
+    private volatile String name;
+    private volatile ChestList list;
 
     private Chest(String player, Coordinate coordinate, boolean isGroup, String name) {
       this.owner = player;
       this.coordinate = coordinate;
       this.isGroup = isGroup;
-      this.rename(name);
+      this.name = name;
     }
 
     public String name() {
       return name;
     }
 
-    public void unlock() {
-      owner = "-";
-      
+    public Coordinate coordinate() {
+      return coordinate;
+    }
+
+    void unlock() {
+      setOwner("-");
     }
 
     public boolean isOpen() {
@@ -248,16 +429,32 @@ public class ChestList extends AsciiConfig {
       return owner;
     }
 
-    public void lock(Player player) {
-      this.owner = player.getName();
+    void lock(Player player) {
+      setOwner(player.getName());
     }
 
     public boolean ownedBy(Player player) {
-      return owner.toLowerCase().equals(player.getName().toLowerCase());
+      return owner.equalsIgnoreCase(player.getName());
     }
 
-    public void rename(String name) {
-      this.name = name;
+    void rename(String name) {
+      ChestList list = this.list;
+      if (list != null) {
+        list.changeName(this, name);
+      }
+      else {
+        this.name = name;
+      }
+    }
+
+    private void setOwner(String owner) {
+      ChestList list = this.list;
+      if (list != null) {
+        list.changeOwner(this, owner);
+      }
+      else {
+        this.owner = owner;
+      }
     }
   }
 
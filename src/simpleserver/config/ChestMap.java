@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import simpleserver.config.ChestList.Chest;
+
+/**
+ * Open-addressing map from a block position packed into a long to the chest
+ * at that position. Lookups take no lock and allocate nothing; changes are
+ * serialized. A table of per-chunk counters answers "no chest in this
+ * chunk" before the map is probed at all.
+ */
+final class ChestMap {
+  private static final int INITIAL_CAPACITY = 64;
+  private static final int CHUNK_BITS = 6;
+  private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+  private static final Object REMOVED = new Object();
+
+  // Chunks whose coordinates agree in their low bits share a counter, so a
+  // zero count proves there is no chest; a non-zero count is only a hint.
+  private final AtomicIntegerArray chunks = new AtomicIntegerArray(1 << (2 * CHUNK_BITS));
+  private volatile Table table = new Table(INITIAL_CAPACITY);
+  private int size = 0;
+  private int used = 0;
+
+  static long key(int x, byte y, int z) {
+    return ((long) (x & 0xfffffff) << 36) | ((long) (z & 0xfffffff) << 8)
+        | (y & 0xff);
+  }
+
+  Chest get(int x, byte y, int z) {
+    if (chunks.get(chunk(x, z)) == 0) {
+      return null;
+    }
+
+    long key = key(x, y, z);
+    Table table = this.table;
+    int slot = hash(key) & table.mask;
+    Object value;
+    while ((value = table.values.get(slot)) != null) {
+      if (value != REMOVED && table.keys[slot] == key) {
+        return (Chest) value;
+      }
+      slot = (slot + 1) & table.mask;
+    }
+    return null;
+  }
+
+  boolean contains(int x, byte y, int z) {
+    return get(x, y, z) != null;
+  }
+
+  synchronized Chest put(int x, byte y, int z, Chest chest) {
+    long key = key(x, y, z);
+    if ((used + 1) * 4 > table.keys.length * 3) {
+      resize();
+    }
+
+    Table table = this.table;
+    int slot = hash(key) & table.mask;
+    int free = -1;
+    Object value;
+    while ((value = table.values.get(slot)) != null) {
+      if (value == REMOVED) {
+        if (free < 0) {
+          free = slot;
+        }
+      }
+      else if (table.keys[slot] == key) {
+        table.values.set(slot, chest);
+        return (Chest) value;
+      }
+      slot = (slot + 1) & table.mask;
+    }
+
+    if (free >= 0) {
+      slot = free;
+    }
+    else {
+      used++;
+    }
+    table.keys[slot] = key;
+    table.values.set(slot, chest);
+    size++;
+    chunks.incrementAndGet(chunk(x, z));
+    return null;
+  }
+
+  synchronized Chest remove(int x, byte y, int z) {
+    long key = key(x, y, z);
+    Table table = this.table;
+    int slot = hash(key) & table.mask;
+    Object value;
+    while ((value = table.values.get(slot)) != null) {
+      if (value != REMOVED && table.keys[slot] == key) {
+        table.values.set(slot, REMOVED);
+        size--;
+        chunks.decrementAndGet(chunk(x, z));
+        return (Chest) value;
+      }
+      slot = (slot + 1) & table.mask;
+    }
+    return null;
+  }
+
+  synchronized void clear() {
+    table = new Table(INITIAL_CAPACITY);
+    size = 0;
+    used = 0;
+    for (int c = 0; c < chunks.length(); ++c) {
+      chunks.set(c, 0);
+    }
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  List<Chest> values() {
+    Table table = this.table;
+    List<Chest> chests = new ArrayList<Chest>();
+    for (int slot = 0; slot < table.keys.length; ++slot) {
+      Object value = table.values.get(slot);
+      if (value != null && value != REMOVED) {
+        chests.add((Chest) value);
+      }
+    }
+    return chests;
+  }
+
+  private void resize() {
+    Table old = table;
+    int capacity = old.keys.length;
+    if (size * 2 >= capacity / 2) {
+      capacity *= 2;
+    }
+
+    Table resized = new Table(capacity);
+    for (int slot = 0; slot < old.keys.length; ++slot) {
+      Object value = old.values.get(slot);
+      if (value != null && value != REMOVED) {
+        int target = hash(old.keys[slot]) & resized.mask;
+        while (resized.values.get(target) != null) {
+          target = (target + 1) & resized.mask;
+        }
+        resized.keys[target] = old.keys[slot];
+        resized.values.set(target, value);
+      }
+    }
+    used = size;
+    table = resized;
+  }
+
+  private static int chunk(int x, int z) {
+    return (((x >> 4) & CHUNK_MASK) << CHUNK_BITS) | ((z >> 4) & CHUNK_MASK);
+  }
+
+  private static int hash(long key) {
+    long hash = key * 0x9e3779b97f4a7c15L;
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  private static final class Table {
+    private final long[] keys;
+    private final AtomicReferenceArray<Object> values;
+    private final int mask;
+
+    private Table(int capacity) {
+      keys = new long[capacity];
+      values = new AtomicReferenceArray<Object>(capacity);
+      mask = capacity - 1;
+    }
+  }
+}
@@ -20,24 +20,35 @@
  */
 package simpleserver.config;
 
+import java.net.InetAddress;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
 
 public class IPBanList extends PropertiesConfig {
+  private volatile NetworkTrie<Boolean> bans = NetworkTrie.empty();
+
   public IPBanList() {
     super("ip-ban-list.txt");
   }
 
-  public void addBan(String ipAddress) {
+  public synchronized void addBan(String ipAddress) {
     properties.setProperty(ipAddress, "");
+    NetworkTrie<Boolean> updated = bans.with(ipAddress, Boolean.TRUE);
+    if (updated != null) {
+      bans = updated;
+    }
+    else {
+      System.out.println("Skipping bad ip ban list entry " + ipAddress);
+    }
 
-    save();
+    markDirty();
   }
 
-  public boolean removeBan(String ipAddress) {
+  public synchronized boolean removeBan(String ipAddress) {
     if (properties.remove(ipAddress) != null) {
-      save();
+      rebuild();
+      markDirty();
 
       return true;
     }
@@ -45,21 +56,13 @@ public class IPBanList extends PropertiesConfig {
     return false;
   }
 
-  public boolean isBanned(String ipAddress) {
-    String network = "";
-    String[] octets = ipAddress.split("\\.");
-
-    for (String octet : octets) {
-      network += octet;
-
-      if (properties.getProperty(network) != null) {
-        return true;
-      }
-
-      network += ".";
-    }
+  public boolean isBanned(InetAddress address) {
+    return bans.lookup(address) != null;
+  }
 
-    return false;
+  public boolean isBanned(String ipAddress) {
+    byte[] address = NetworkTrie.parseAddress(ipAddress);
+    return address != null && bans.lookup(address) != null;
   }
 
   @Override
@@ -77,5 +80,18 @@ public class IPBanList extends PropertiesConfig {
     for (String network : networks) {
       properties.setProperty(network, "");
     }
+    rebuild();
+  }
+
+  private void rebuild() {
+    NetworkTrie.Builder<Boolean> builder = new NetworkTrie.Builder<Boolean>();
+    synchronized (properties) {
+      for (Object network : properties.keySet()) {
+        if (!builder.add((String) network, Boolean.TRUE)) {
+          System.out.println("Skipping bad ip ban list entry " + network);
+        }
+      }
+    }
+    bans = builder.build();
   }
 }
@@ -20,37 +20,39 @@
  */
 package simpleserver.config;
 
+import java.net.InetAddress;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Pattern;
 
 import simpleserver.options.Options;
 
 public class IPMemberList extends PropertiesConfig {
   private final Options options;
-  private final ConcurrentMap<String, Integer> members;
+  private volatile NetworkTrie<Integer> members;
 
   public IPMemberList(Options options) {
     super("ip-member-list.txt");
 
     this.options = options;
-    members = new ConcurrentHashMap<String, Integer>();
+    members = NetworkTrie.empty();
   }
 
-  public int getGroup(String ipAddress) {
-    String network = "";
-    String[] octets = ipAddress.split("\\.");
-
-    for (String octet : octets) {
-      network += octet;
+  /**
+   * Returns the group of the most specific network containing address.
+   */
+  public int getGroup(InetAddress address) {
+    Integer group = members.lookup(address);
+    if (group != null) {
+      return group;
+    }
 
-      Integer group = members.get(network);
-      if (group != null) {
-        return group;
-      }
+    return options.getInt("defaultGroup");
+  }
 
-      network += ".";
+  public int getGroup(String ipAddress) {
+    byte[] address = NetworkTrie.parseAddress(ipAddress);
+    Integer group = (address == null) ? null : members.lookup(address);
+    if (group != null) {
+      return group;
     }
 
     return options.getInt("defaultGroup");
@@ -60,8 +62,7 @@ public class IPMemberList extends PropertiesConfig {
   public void load() {
     super.load();
 
-    members.clear();
-    Pattern trailingDot = Pattern.compile("\\.$");
+    NetworkTrie.Builder<Integer> builder = new NetworkTrie.Builder<Integer>();
     for (Entry<Object, Object> entry : properties.entrySet()) {
       Integer group;
       try {
@@ -73,9 +74,11 @@ public class IPMemberList extends PropertiesConfig {
         continue;
       }
 
-      String network = trailingDot.matcher(entry.getKey().toString())
-                                  .replaceFirst("");
-      members.put(network, group);
+      if (!builder.add(entry.getKey().toString(), group)) {
+        System.out.println("Skipping bad ip member list entry "
+            + entry.getKey());
+      }
     }
+    members = builder.build();
   }
 }
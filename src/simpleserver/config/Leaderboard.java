@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Players ordered by one statistic, highest first and by name on ties. The
+ * ranking is a treap whose nodes know the size of their subtree, so
+ * updates, rank lookups and finding the start of a page are O(log n).
+ */
+public final class Leaderboard {
+  private final Random random = new Random();
+  private Node root;
+
+  Leaderboard() {
+  }
+
+  /**
+   * Returns up to count entries starting at the given 1-based rank.
+   */
+  public synchronized List<Entry> top(int from, int count) {
+    List<Entry> entries = new ArrayList<Entry>(Math.max(0, Math.min(count, size(root))));
+    collect(root, from - 1, count, entries);
+    return entries;
+  }
+
+  /**
+   * Returns the 1-based rank of name with the given score, or 0 if it is not
+   * ranked.
+   */
+  public synchronized int rank(String name, int score) {
+    Node node = root;
+    int before = 0;
+    while (node != null) {
+      int order = compare(score, name, node);
+      if (order == 0) {
+        return before + size(node.left) + 1;
+      }
+      if (order < 0) {
+        node = node.left;
+      }
+      else {
+        before += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    return 0;
+  }
+
+  public synchronized int size() {
+    return size(root);
+  }
+
+  synchronized void add(String name, int score) {
+    root = insert(root, new Node(name, score, random.nextInt()));
+  }
+
+  synchronized void update(String name, int oldScore, int newScore) {
+    if (oldScore != newScore) {
+      root = delete(root, name, oldScore);
+      root = insert(root, new Node(name, newScore, random.nextInt()));
+    }
+  }
+
+  synchronized void clear() {
+    root = null;
+  }
+
+  private void collect(Node node, int skip, int count, List<Entry> entries) {
+    while (node != null && entries.size() < count) {
+      int left = size(node.left);
+      if (skip < left) {
+        collect(node.left, skip, count, entries);
+        skip = 0;
+      }
+      else {
+        skip -= left;
+      }
+      if (entries.size() >= count) {
+        return;
+      }
+      if (skip == 0) {
+        entries.add(new Entry(node.name, node.score));
+      }
+      else {
+        skip--;
+      }
+      node = node.right;
+    }
+  }
+
+  private Node insert(Node node, Node inserted) {
+    if (node == null) {
+      return inserted;
+    }
+    if (compare(inserted.score, inserted.name, node) < 0) {
+      node.left = insert(node.left, inserted);
+      if (node.left.priority > node.priority) {
+        node = rotateRight(node);
+      }
+    }
+    else {
+      node.right = insert(node.right, inserted);
+      if (node.right.priority > node.priority) {
+        node = rotateLeft(node);
+      }
+    }
+    node.update();
+    return node;
+  }
+
+  private Node delete(Node node, String name, int score) {
+    if (node == null) {
+      return null;
+    }
+    int order = compare(score, name, node);
+    if (order < 0) {
+      node.left = delete(node.left, name, score);
+    }
+    else if (order > 0) {
+      node.right = delete(node.right, name, score);
+    }
+    else {
+      return merge(node.left, node.right);
+    }
+    node.update();
+    return node;
+  }
+
+  private Node merge(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      left.right = merge(left.right, right);
+      left.update();
+      return left;
+    }
+    else {
+      right.left = merge(left, right.left);
+      right.update();
+      return right;
+    }
+  }
+
+  private Node rotateRight(Node node) {
+    Node left = node.left;
+    node.left = left.right;
+    node.update();
+    left.right = node;
+    return left;
+  }
+
+  private Node rotateLeft(Node node) {
+    Node right = node.right;
+    node.right = right.left;
+    node.update();
+    right.left = node;
+    return right;
+  }
+
+  private static int compare(int score, String name, Node node) {
+    if (score != node.score) {
+      return (score > node.score) ? -1 : 1;
+    }
+    return name.compareTo(node.name);
+  }
+
+  private static int size(Node node) {
+    return (node == null) ? 0 : node.size;
+  }
+
+  public static final class Entry {
+    public final String name;
+    public final int score;
+
+    private Entry(String name, int score) {
+      this.name = name;
+      this.score = score;
+    }
+  }
+
+  private static final class Node {
+    private final String name;
+    private final int score;
+    private final int priority;
+    private int size = 1;
+    private Node left;
+    private Node right;
+
+    private Node(String name, int score, int priority) {
+      this.name = name;
+      this.score = score;
+      this.priority = priority;
+    }
+
+    private void update() {
+      size = 1 + size(left) + size(right);
+    }
+  }
+}
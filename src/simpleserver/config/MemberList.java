@@ -53,7 +53,7 @@ public class MemberList extends PropertiesConfig {
     properties.setProperty(name.toLowerCase(), Integer.toString(group));
 
     server.updateGroup(name);
-    save();
+    markDirty();
   }
 
   @Override
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Immutable path-compressed binary trie of IPv4 and IPv6 networks, matching
+ * raw address bytes against the most specific network that contains them.
+ * Build a trie with {@link Builder}; {@link #with} returns a changed copy
+ * that can be swapped in.
+ *
+ * Networks are written as CIDR ranges ("10.0.0.0/12", "2001:db8::/32"),
+ * single addresses, or the older dotted prefixes with one to four octets
+ * ("10.0" is 10.0.0.0/16).
+ */
+final class NetworkTrie<V> {
+  private final Node<V> ipv4;
+  private final Node<V> ipv6;
+  private final int size;
+
+  private NetworkTrie(Node<V> ipv4, Node<V> ipv6, int size) {
+    this.ipv4 = ipv4;
+    this.ipv6 = ipv6;
+    this.size = size;
+  }
+
+  static <V> NetworkTrie<V> empty() {
+    return new NetworkTrie<V>(null, null, 0);
+  }
+
+  V lookup(InetAddress address) {
+    return lookup(address.getAddress());
+  }
+
+  /**
+   * Returns the value of the most specific network containing address (4 or
+   * 16 bytes), or null.
+   */
+  V lookup(byte[] address) {
+    Node<V> node = (address.length == 4) ? ipv4 : ipv6;
+    int addressBits = address.length * 8;
+    V best = null;
+    while (node != null && node.bits <= addressBits
+        && matches(address, node.key, node.bits)) {
+      if (node.value != null) {
+        best = node.value;
+      }
+      if (node.bits == addressBits) {
+        break;
+      }
+      node = bit(address, node.bits) ? node.one : node.zero;
+    }
+    return best;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Parses an address literal without any name lookups, or returns null.
+   */
+  static byte[] parseAddress(String address) {
+    if (address.indexOf(':') >= 0) {
+      try {
+        // Literals containing a colon are never resolved.
+        return InetAddress.getByName(address).getAddress();
+      }
+      catch (UnknownHostException e) {
+        return null;
+      }
+    }
+    byte[] bytes = new byte[4];
+    return (parseOctets(address, bytes) == 4) ? bytes : null;
+  }
+
+  /**
+   * Parses up to four dotted octets into bytes and returns how many were
+   * given, or -1.
+   */
+  private static int parseOctets(String text, byte[] bytes) {
+    int octets = 0;
+    int value = -1;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        value = (value < 0 ? 0 : value * 10) + (c - '0');
+        if (value > 255) {
+          return -1;
+        }
+      }
+      else if (c == '.' && value >= 0 && octets < 4) {
+        bytes[octets++] = (byte) value;
+        value = -1;
+      }
+      else {
+        return -1;
+      }
+    }
+    if (value >= 0) {
+      if (octets == 4) {
+        return -1;
+      }
+      bytes[octets++] = (byte) value;
+    }
+    return (octets == 0) ? -1 : octets;
+  }
+
+  private static boolean matches(byte[] address, byte[] key, int bits) {
+    int bytes = bits >> 3;
+    for (int i = 0; i < bytes; i++) {
+      if (address[i] != key[i]) {
+        return false;
+      }
+    }
+    int rest = bits & 7;
+    if (rest == 0) {
+      return true;
+    }
+    int mask = 0xff00 >> rest;
+    return ((address[bytes] ^ key[bytes]) & mask) == 0;
+  }
+
+  private static boolean bit(byte[] address, int index) {
+    return (address[index >> 3] & (0x80 >> (index & 7))) != 0;
+  }
+
+  private static int commonBits(byte[] a, byte[] b, int limit) {
+    int bits = 0;
+    while (bits < limit) {
+      int difference = (a[bits >> 3] ^ b[bits >> 3]) & 0xff;
+      if (difference == 0) {
+        bits += 8;
+        continue;
+      }
+      bits += Integer.numberOfLeadingZeros(difference) - 24;
+      break;
+    }
+    return Math.min(bits, limit);
+  }
+
+  /**
+   * Returns a copy of this trie with network added, or null if it could not
+   * be parsed. Only the nodes on the path to the network are copied, so
+   * this trie stays valid for concurrent readers.
+   */
+  NetworkTrie<V> with(String network, V value) {
+    Network parsed = Network.parse(network);
+    if (parsed == null) {
+      return null;
+    }
+
+    int grown = size;
+    Node<V> root = (parsed.key.length == 4) ? ipv4 : ipv6;
+    if (!contains(root, parsed.key, parsed.bits)) {
+      grown++;
+    }
+    root = insert(root, parsed.key, parsed.bits, value);
+    if (parsed.key.length == 4) {
+      return new NetworkTrie<V>(root, ipv6, grown);
+    }
+    return new NetworkTrie<V>(ipv4, root, grown);
+  }
+
+  private static <V> boolean contains(Node<V> node, byte[] key, int bits) {
+    while (node != null && node.bits <= bits && matches(key, node.key, node.bits)) {
+      if (node.bits == bits) {
+        return node.value != null;
+      }
+      node = bit(key, node.bits) ? node.one : node.zero;
+    }
+    return false;
+  }
+
+  /**
+   * Inserts a masked network below node without changing any existing node,
+   * and returns the new root of that subtree.
+   */
+  private static <V> Node<V> insert(Node<V> node, byte[] key, int bits, V value) {
+    if (node == null) {
+      return new Node<V>(key, bits, value, null, null);
+    }
+
+    int common = commonBits(key, node.key, Math.min(bits, node.bits));
+    if (common < node.bits) {
+      // The new network branches off above node.
+      boolean nodeIsOne = bit(node.key, common);
+      if (common == bits) {
+        return new Node<V>(key, bits, value, nodeIsOne ? null : node,
+                           nodeIsOne ? node : null);
+      }
+
+      byte[] glue = key.clone();
+      mask(glue, common);
+      Node<V> leaf = new Node<V>(key, bits, value, null, null);
+      return new Node<V>(glue, common, null, nodeIsOne ? leaf : node,
+                         nodeIsOne ? node : leaf);
+    }
+
+    if (bits == node.bits) {
+      return new Node<V>(node.key, node.bits, value, node.zero, node.one);
+    }
+    else if (bit(key, node.bits)) {
+      return new Node<V>(node.key, node.bits, node.value, node.zero,
+                         insert(node.one, key, bits, value));
+    }
+    else {
+      return new Node<V>(node.key, node.bits, node.value,
+                         insert(node.zero, key, bits, value), node.one);
+    }
+  }
+
+  private static void mask(byte[] key, int bits) {
+    for (int i = 0; i < key.length; i++) {
+      int keep = bits - i * 8;
+      if (keep <= 0) {
+        key[i] = 0;
+      }
+      else if (keep < 8) {
+        key[i] &= 0xff00 >> keep;
+      }
+    }
+  }
+
+  static final class Builder<V> {
+    private NetworkTrie<V> trie = empty();
+
+    /**
+     * Adds a network; returns false if it could not be parsed.
+     */
+    boolean add(String network, V value) {
+      NetworkTrie<V> grown = trie.with(network, value);
+      if (grown == null) {
+        return false;
+      }
+      trie = grown;
+      return true;
+    }
+
+    NetworkTrie<V> build() {
+      NetworkTrie<V> built = trie;
+      trie = empty();
+      return built;
+    }
+  }
+
+  /**
+   * A parsed network: the masked address bytes and the prefix length.
+   */
+  private static final class Network {
+    private final byte[] key;
+    private final int bits;
+
+    private Network(byte[] key, int bits) {
+      this.key = key;
+      this.bits = bits;
+    }
+
+    private static Network parse(String network) {
+      network = network.trim();
+      int bits = -1;
+      int slash = network.indexOf('/');
+      if (slash >= 0) {
+        try {
+          bits = Integer.parseInt(network.substring(slash + 1));
+        }
+        catch (NumberFormatException e) {
+          return null;
+        }
+        network = network.substring(0, slash);
+      }
+      if (network.endsWith(".")) {
+        network = network.substring(0, network.length() - 1);
+      }
+
+      byte[] key;
+      if (network.indexOf(':') >= 0) {
+        key = parseAddress(network);
+        if (key == null) {
+          return null;
+        }
+      }
+      else {
+        key = new byte[4];
+        int octets = parseOctets(network, key);
+        if (octets < 0 || (slash >= 0 && octets != 4)) {
+          return null;
+        }
+        if (bits < 0) {
+          bits = octets * 8;
+        }
+      }
+      if (bits < 0) {
+        bits = key.length * 8;
+      }
+      if (bits > key.length * 8) {
+        return null;
+      }
+
+      mask(key, bits);
+      return new Network(key, bits);
+    }
+  }
+
+  private static final class Node<V> {
+    private final byte[] key;
+    private final int bits;
+    private final V value;
+    private final Node<V> zero;
+    private final Node<V> one;
+
+    private Node(byte[] key, int bits, V value, Node<V> zero, Node<V> one) {
+      this.key = key;
+      this.bits = bits;
+      this.value = value;
+      this.zero = zero;
+      this.one = one;
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import simpleserver.Resource;
+
+/**
+ * Writes changed configuration files in the background. Mutators mark their
+ * config dirty instead of saving it; a single writer thread waits until the
+ * config's deadline, so further changes in the meantime cost nothing, and
+ * then saves it once.
+ */
+public final class PersistenceService {
+  private static final long COALESCE_DELAY = 1000;
+
+  private static final Map<AbstractConfig, Long> dirty = new LinkedHashMap<AbstractConfig, Long>();
+  private static final Object lock = new Object();
+
+  private static Flusher flusher;
+  private static long writes = 0;
+  private static long requests = 0;
+
+  private PersistenceService() {
+  }
+
+  /**
+   * Schedules config to be saved by the background writer. Marking a config
+   * that is already waiting to be saved has no further effect.
+   */
+  public static void markDirty(AbstractConfig config) {
+    markDirty(config, COALESCE_DELAY);
+  }
+
+  /**
+   * Schedules config to be saved after delay milliseconds, for configs that
+   * change constantly and only need to reach the disk eventually.
+   */
+  public static void markDirty(AbstractConfig config, long delay) {
+    synchronized (lock) {
+      requests++;
+      if (dirty.containsKey(config)) {
+        return;
+      }
+      dirty.put(config, System.currentTimeMillis() + delay);
+      if (flusher == null) {
+        flusher = new Flusher();
+        flusher.setDaemon(true);
+        flusher.setName("PersistenceService");
+        flusher.start();
+      }
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Saves every dirty config on the calling thread.
+   */
+  public static void flush() {
+    write(Long.MAX_VALUE);
+  }
+
+  /**
+   * Saves resource on the calling thread. A config that was waiting for the
+   * background writer is taken out of the dirty set first, so it is not
+   * written a second time.
+   */
+  public static void save(Resource resource) {
+    if (resource instanceof AbstractConfig) {
+      synchronized (lock) {
+        dirty.remove(resource);
+      }
+    }
+    resource.save();
+  }
+
+  private static void write(long now) {
+    List<AbstractConfig> batch = new ArrayList<AbstractConfig>();
+    synchronized (lock) {
+      Iterator<Entry<AbstractConfig, Long>> entries = dirty.entrySet().iterator();
+      while (entries.hasNext()) {
+        Entry<AbstractConfig, Long> entry = entries.next();
+        if (entry.getValue() <= now) {
+          batch.add(entry.getKey());
+          entries.remove();
+        }
+      }
+      writes += batch.size();
+    }
+
+    // A config marked again while it is being written stays in the dirty set
+    // and is saved once more later.
+    for (AbstractConfig config : batch) {
+      config.save();
+    }
+  }
+
+  public static String report() {
+    synchronized (lock) {
+      return "Persistence: " + requests + " changes, " + writes
+          + " file writes, " + dirty.size() + " pending";
+    }
+  }
+
+  /**
+   * Moves a completely written temporary file over target, atomically where
+   * the file system allows it. On failure both files are left in place, so
+   * the previous version is never lost.
+   */
+  static boolean replace(File temporary, File target) {
+    try {
+      Files.move(temporary.toPath(), target.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    }
+    catch (IOException e) {
+      // ATOMIC_MOVE is not supported everywhere; try a plain replace.
+    }
+    try {
+      Files.move(temporary.toPath(), target.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING);
+      return true;
+    }
+    catch (IOException e) {
+      System.out.println("[SimpleServer] " + e);
+      return false;
+    }
+  }
+
+  private static final class Flusher extends Thread {
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          // Waiting for the earliest deadline lets a burst of changes settle
+          // so it is written only once.
+          synchronized (lock) {
+            long wait = nextDeadline() - System.currentTimeMillis();
+            while (wait > 0) {
+              lock.wait(wait == Long.MAX_VALUE ? 0 : wait);
+              wait = nextDeadline() - System.currentTimeMillis();
+            }
+          }
+        }
+        catch (InterruptedException e) {
+        }
+
+        write(System.currentTimeMillis());
+      }
+    }
+
+    private long nextDeadline() {
+      long deadline = Long.MAX_VALUE;
+      for (long due : dirty.values()) {
+        deadline = Math.min(deadline, due);
+      }
+      return deadline;
+    }
+  }
+}
@@ -20,6 +20,7 @@
  */
 package simpleserver.config;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -45,11 +46,14 @@ public abstract class PropertiesConfig extends AbstractConfig {
     this.layered = layered;
 
     properties = new Properties();
-    loadDefaults();
   }
 
   @Override
   public void load() {
+    if (defaultProperties == null) {
+      loadDefaults();
+    }
+
     if (layered) {
       properties = (Properties) defaultProperties.clone();
     }
@@ -78,15 +82,19 @@ public abstract class PropertiesConfig extends AbstractConfig {
   }
 
   @Override
-  public void save() {
+  public synchronized void save() {
+    File temporary = getTemporaryFile();
     try {
-      OutputStream stream = new FileOutputStream(getFile());
+      OutputStream stream = new FileOutputStream(temporary);
       try {
         properties.store(stream, getHeader());
       }
       finally {
         stream.close();
       }
+      if (!PersistenceService.replace(temporary, getFile())) {
+        throw new IOException("Could not replace " + getFile());
+      }
     }
     catch (IOException e) {
       System.out.println("[SimpleServer] " + e);
@@ -104,7 +104,7 @@ public class RobotList extends PropertiesConfig {
             if (i.tries > 30) {
               properties.setProperty(ip, "");
               potentialRobots.remove(i);
-              save();
+              markDirty();
             }
           }
         }
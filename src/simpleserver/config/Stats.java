@@ -20,128 +20,329 @@
  */
 package simpleserver.config;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import simpleserver.Player;
 
-public class Stats extends PropertiesConfig {
+/**
+ * Per-player counters for online minutes and placed and destroyed blocks.
+ * Updates only touch memory; stats.txt is rewritten in the background at
+ * most once per SAVE_DELAY and on shutdown. The file keeps the
+ * properties format "name=minutes,placed,destroyed".
+ *
+ * Every metric has a {@link Leaderboard} that is updated along with the
+ * counters, so rankings never require sorting all players.
+ */
+public class Stats extends AbstractConfig {
+  private static final long SAVE_DELAY = 5 * 60 * 1000;
+  private static final String ENCODING = "ISO-8859-1";
+
+  public enum Metric {
+    MINUTES, PLACED, DESTROYED;
+
+    public static Metric parse(String name) {
+      for (Metric metric : values()) {
+        if (metric.name().equalsIgnoreCase(name)) {
+          return metric;
+        }
+      }
+      return null;
+    }
+  }
+
   private final ConcurrentMap<String, Statistic> stats;
+  private final Leaderboard[] leaderboards;
 
   public Stats() {
     super("stats.txt");
 
     stats = new ConcurrentHashMap<String, Statistic>();
+    leaderboards = new Leaderboard[Metric.values().length];
+    for (int i = 0; i < leaderboards.length; i++) {
+      leaderboards[i] = new Leaderboard();
+    }
   }
 
   @Override
   public void load() {
-    super.load();
-
+    File file = getFile();
     stats.clear();
-    for (Entry<Object, Object> entry : properties.entrySet()) {
-      String objects[] = entry.getValue().toString().split(",");
-      if(objects.length < 3) {
-        System.out.println("Skipping bad statistics for " + entry.getKey());
-        continue;
-      }
-      
-      Integer[] ints = new Integer[3];
-      
+    for (Leaderboard leaderboard : leaderboards) {
+      leaderboard.clear();
+    }
+
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING), 65536);
       try {
-        for(int i=0; i<3; i++) {
-          ints[i] = Integer.parseInt(objects[i]);
+        String line;
+        while ((line = reader.readLine()) != null) {
+          loadLine(line);
         }
       }
-      catch (NumberFormatException e) {
-        System.out.println("Skipping bad statistics fory " + entry.getKey());
-        continue;
+      finally {
+        reader.close();
       }
+    }
+    catch (FileNotFoundException e) {
+      System.out.println(getFilename() + " is missing.  Loading defaults.");
+      save();
+    }
+    catch (IOException e) {
+      System.out.println("[SimpleServer] " + e);
+      System.out.println("[SimpleServer] Failed to load " + getFilename());
+    }
 
-      stats.put(entry.getKey().toString().toLowerCase(), new Statistic(ints));
+    for (Statistic statistic : stats.values()) {
+      statistic.rankAll();
     }
+  }
+
+  @Override
+  public synchronized void save() {
+    File temporary = getTemporaryFile();
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), ENCODING), 65536);
+      try {
+        for (String line : getHeader().split("\n")) {
+          writer.write('#');
+          writer.write(line);
+          writer.write('\n');
+        }
 
-    properties.clear();
-    for (Entry<String, Statistic> entry : stats.entrySet()) {
-      properties.setProperty(entry.getKey(), entry.getValue().toString());
+        StringBuilder line = new StringBuilder(64);
+        for (Entry<String, Statistic> entry : stats.entrySet()) {
+          line.setLength(0);
+          appendKey(line, entry.getKey());
+          line.append('=');
+          entry.getValue().appendTo(line);
+          line.append('\n');
+          writer.append(line);
+        }
+      }
+      finally {
+        writer.close();
+      }
+      if (!PersistenceService.replace(temporary, getFile())) {
+        throw new IOException("Could not replace " + getFile());
+      }
+    }
+    catch (IOException e) {
+      System.out.println("[SimpleServer] " + e);
+      System.out.println("[SimpleServer] Failed to save " + getFilename());
     }
   }
-  
 
   public void addOnlineMinutes(Player player, int minutes) {
-    getStatistic(player).addMinutes(minutes);
-    updatePorperties(player);
+    getStatistic(player).add(Metric.MINUTES, minutes);
+    markDirty(SAVE_DELAY);
   }
-  
+
   public int addDestroyedBlocks(Player player, int ammount) {
-    ammount = getStatistic(player).addDestroyedBlocks(ammount);
-    updatePorperties(player);
+    ammount = getStatistic(player).add(Metric.DESTROYED, ammount);
+    markDirty(SAVE_DELAY);
     return ammount;
   }
-  
+
   public int addPlacedBlocks(Player player, int ammount) {
-    ammount = getStatistic(player).addPlacedBlocks(ammount);
-    updatePorperties(player);
+    ammount = getStatistic(player).add(Metric.PLACED, ammount);
+    markDirty(SAVE_DELAY);
     return ammount;
   }
 
   public int getMinutes(Player player) {
-    return getStatistic(player).minutes;
+    Statistic statistic = stats.get(player.getName().toLowerCase());
+    return (statistic == null) ? 0 : statistic.get(Metric.MINUTES);
   }
-  
-  private void updatePorperties(Player player) {
-    properties.setProperty(player.getName().toLowerCase(), stats.get(player.getName().toLowerCase()).toString());
+
+  public Leaderboard getLeaderboard(Metric metric) {
+    return leaderboards[metric.ordinal()];
+  }
+
+  /**
+   * Returns the 1-based rank of the named player, or 0 if they have no
+   * statistics.
+   */
+  public int getRank(String name, Metric metric) {
+    Statistic statistic = stats.get(name.toLowerCase());
+    return (statistic == null) ? 0 : statistic.rank(metric);
   }
-  
+
   private Statistic getStatistic(Player player) {
     String key = player.getName().toLowerCase();
-    if(stats.containsKey(key)) {
-      return stats.get(key);
-    } else {
-      Statistic empty = new Statistic();
-      stats.put(key, empty);
-      return empty;
+    Statistic statistic = stats.get(key);
+    if (statistic == null) {
+      Statistic empty = new Statistic(key, 0, 0, 0);
+      statistic = stats.putIfAbsent(key, empty);
+      if (statistic == null) {
+        statistic = empty;
+        statistic.rankAll();
+      }
     }
+    return statistic;
   }
 
-  private class Statistic {
-    private int minutes;
-    private int blocksPlaced;
-    private int blocksDestroyed;
-    
-    public Statistic(Integer[] stats) {
-      if(stats.length >= 3) {
-        minutes = stats[0];
-        blocksPlaced = stats[1];
-        blocksDestroyed = stats[2];
-      }
+  private void loadLine(String line) {
+    int start = 0;
+    int length = line.length();
+    while (start < length && isWhitespace(line.charAt(start))) {
+      start++;
+    }
+    if (start == length || line.charAt(start) == '#' || line.charAt(start) == '!') {
+      return;
+    }
+
+    if (line.indexOf('\\') >= 0) {
+      // Escaped keys and continuation lines are rare enough to leave to
+      // Properties itself.
+      loadEscapedLine(line);
+      return;
+    }
+
+    int separator = start;
+    while (separator < length && "=: \t\f".indexOf(line.charAt(separator)) < 0) {
+      separator++;
     }
-    
-    public int addDestroyedBlocks(int ammount) {
-      blocksDestroyed += ammount;
-      return blocksDestroyed;
+    String key = line.substring(start, separator).toLowerCase();
+    int value = separator;
+    while (value < length && isWhitespace(line.charAt(value))) {
+      value++;
     }
+    if (value < length && (line.charAt(value) == '=' || line.charAt(value) == ':')) {
+      value++;
+    }
+    loadEntry(key, line, value);
+  }
 
-    public int addPlacedBlocks(int ammount) {
-      blocksPlaced += ammount;
-      return blocksPlaced;
+  private void loadEscapedLine(String line) {
+    Properties properties = new Properties();
+    try {
+      properties.load(new StringReader(line));
     }
-    
-    public Statistic() {
-      minutes = 0;
-      blocksDestroyed = 0;
-      blocksPlaced = 0;
+    catch (IOException e) {
+      return;
     }
+    for (Entry<Object, Object> entry : properties.entrySet()) {
+      loadEntry(entry.getKey().toString().toLowerCase(), entry.getValue().toString(), 0);
+    }
+  }
+
+  private void loadEntry(String key, String line, int offset) {
+    int[] values = new int[3];
+    int position = offset;
+    int length = line.length();
+    for (int i = 0; i < 3; i++) {
+      while (position < length && isWhitespace(line.charAt(position))) {
+        position++;
+      }
+      boolean negative = position < length && line.charAt(position) == '-';
+      if (negative) {
+        position++;
+      }
+      int digits = position;
+      long value = 0;
+      while (position < length && position - digits < 10) {
+        char c = line.charAt(position);
+        if (c < '0' || c > '9') {
+          break;
+        }
+        value = value * 10 + (c - '0');
+        position++;
+      }
+      if (position == digits || value > Integer.MAX_VALUE) {
+        System.out.println("Skipping bad statistics for " + key);
+        return;
+      }
+      values[i] = (int) (negative ? -value : value);
 
-    public void addMinutes(int minutes) {
-      this.minutes += minutes;
+      if (i < 2) {
+        if (position >= length || line.charAt(position) != ',') {
+          System.out.println("Skipping bad statistics for " + key);
+          return;
+        }
+        position++;
+      }
     }
 
-    public String toString() {
-      return minutes + "," + blocksPlaced + "," + blocksDestroyed;
+    stats.put(key, new Statistic(key, values[0], values[1], values[2]));
+  }
+
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\f';
+  }
+
+  private static void appendKey(StringBuilder line, String key) {
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c > 0x7e || c < 0x20) {
+        line.append("\\u");
+        String hex = Integer.toHexString(c);
+        for (int pad = hex.length(); pad < 4; pad++) {
+          line.append('0');
+        }
+        line.append(hex);
+        continue;
+      }
+      if ("=: \t\f#!\\".indexOf(c) >= 0) {
+        line.append('\\');
+      }
+      line.append(c);
     }
-    
   }
 
+  private final class Statistic {
+    private final String name;
+    private final int[] values;
+    private boolean ranked = false;
+
+    private Statistic(String name, int minutes, int blocksPlaced, int blocksDestroyed) {
+      this.name = name;
+      values = new int[] { minutes, blocksPlaced, blocksDestroyed };
+    }
+
+    private synchronized int add(Metric metric, int ammount) {
+      int index = metric.ordinal();
+      int previous = values[index];
+      values[index] += ammount;
+      if (ranked) {
+        leaderboards[index].update(name, previous, values[index]);
+      }
+      return values[index];
+    }
+
+    private synchronized int get(Metric metric) {
+      return values[metric.ordinal()];
+    }
+
+    private synchronized int rank(Metric metric) {
+      int index = metric.ordinal();
+      return leaderboards[index].rank(name, values[index]);
+    }
+
+    private synchronized void rankAll() {
+      ranked = true;
+      for (int i = 0; i < values.length; i++) {
+        leaderboards[i].add(name, values[i]);
+      }
+    }
+
+    private synchronized void appendTo(StringBuilder line) {
+      line.append(values[0]).append(',').append(values[1]).append(',')
+          .append(values[2]);
+    }
+  }
 }
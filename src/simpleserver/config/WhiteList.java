@@ -34,13 +34,13 @@ public class WhiteList extends PropertiesConfig {
 
   public void addName(String name) {
     if (properties.setProperty(name.toLowerCase(), "") == null) {
-      save();
+      markDirty();
     }
   }
 
   public boolean removeName(String name) {
     if (properties.remove(name.toLowerCase()) != null) {
-      save();
+      markDirty();
       return true;
     }
 
@@ -0,0 +1,541 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Per-player activity counters in minute, hour and day buckets.
+ *
+ * Players count into their own {@link Counters}. Once a minute a background
+ * thread collects them into a minute bucket, appends it to disk and adds it
+ * to the running hour, which is appended and added to the running day when
+ * it ends. Every file is a sequence of fixed-size records (bucket, player id,
+ * one int per counter) in bucket order, so queries binary search the first
+ * bucket and read only the requested range. Minute files are kept per day
+ * for MINUTE_RETENTION_DAYS. Buckets are counted from the epoch in UTC.
+ */
+public class ActivityStore {
+  public static final int PLACED = 0;
+  public static final int DESTROYED = 1;
+  public static final int JOINS = 2;
+  public static final int MINUTES = 3;
+  public static final String[] COUNTER_NAMES = { "placed", "destroyed",
+      "joins", "minutes" };
+
+  public static final int MINUTE = 0;
+  public static final int HOUR = 1;
+  public static final int DAY = 2;
+  public static final String[] RESOLUTION_NAMES = { "minute", "hour", "day" };
+
+  private static final long[] RESOLUTION_MILLIS = { 60L * 1000,
+      60L * 60 * 1000, 24L * 60 * 60 * 1000 };
+  private static final int COUNTERS = COUNTER_NAMES.length;
+  private static final int RECORD_SIZE = 4 * (2 + COUNTERS);
+  private static final int MINUTES_PER_DAY = 24 * 60;
+  private static final int MINUTE_RETENTION_DAYS = 8;
+
+  private final File directory;
+  private final Map<String, Integer> playerIds;
+  private final List<String> unsavedNames;
+  private final Map<Counters, Boolean> active;
+  private final Map<Integer, int[]> departed;
+
+  private final Object bucketLock = new Object();
+  private final Map<Integer, int[]> hour;
+  private final Map<Integer, int[]> day;
+  private int currentMinute;
+  private int currentHour;
+  private int currentDay;
+
+  private final Roller roller;
+  private volatile boolean run = true;
+
+  public ActivityStore() {
+    directory = new File("simpleserver" + File.separator + "activity");
+    directory.mkdirs();
+
+    playerIds = new HashMap<String, Integer>();
+    unsavedNames = new ArrayList<String>();
+    active = new ConcurrentHashMap<Counters, Boolean>();
+    departed = new HashMap<Integer, int[]>();
+    hour = new HashMap<Integer, int[]>();
+    day = new HashMap<Integer, int[]>();
+    loadPlayers();
+
+    long now = System.currentTimeMillis();
+    currentMinute = bucket(now, MINUTE);
+    currentHour = bucket(now, HOUR);
+    currentDay = bucket(now, DAY);
+    deleteOldMinutes();
+
+    roller = new Roller();
+    roller.setDaemon(true);
+    roller.start();
+    roller.setName("ActivityStore");
+  }
+
+  /**
+   * Starts counting for a player who joined.
+   */
+  public Counters join(String name) {
+    Counters counters = new Counters(playerId(name));
+    counters.values.incrementAndGet(JOINS);
+    active.put(counters, Boolean.TRUE);
+    return counters;
+  }
+
+  /**
+   * Stops counting for a player who left. What they did in the current
+   * minute is still recorded with it.
+   */
+  public void leave(Counters counters) {
+    if (active.remove(counters) != null) {
+      int[] values = counters.drain();
+      values[MINUTES]++;
+      synchronized (departed) {
+        add(departed, counters.player, values);
+      }
+    }
+  }
+
+  public void stop() {
+    run = false;
+    roller.interrupt();
+    try {
+      roller.join();
+    }
+    catch (InterruptedException e) {
+    }
+
+    // Queries sum all records of a bucket, so writing the unfinished hour
+    // and day now and continuing them after a restart is fine.
+    synchronized (bucketLock) {
+      try {
+        collect();
+        closeHour();
+        closeDay();
+      }
+      catch (IOException e) {
+        System.out.println("[SimpleServer] " + e);
+        System.out.println("[SimpleServer] Failed to save activity!");
+      }
+    }
+  }
+
+  /**
+   * Sums a counter over count buckets of the given resolution, the last one
+   * being the current bucket. player may be null to include everyone.
+   * Returns the first bucket in result[0] followed by one sum per bucket.
+   */
+  public long[] query(int counter, int resolution, int count, String player) {
+    int last = bucket(System.currentTimeMillis(), resolution);
+    int first = last - count + 1;
+    long[] result = new long[count + 1];
+    result[0] = first;
+
+    int playerId = -1;
+    if (player != null) {
+      synchronized (playerIds) {
+        Integer id = playerIds.get(player.toLowerCase());
+        if (id == null) {
+          return result;
+        }
+        playerId = id;
+      }
+    }
+
+    synchronized (bucketLock) {
+      try {
+        if (resolution == MINUTE) {
+          for (int fileDay = first / MINUTES_PER_DAY; fileDay <= last
+              / MINUTES_PER_DAY; fileDay++) {
+            read(minuteFile(fileDay), counter, first, last, playerId, result);
+          }
+        }
+        else {
+          read(file(resolution), counter, first, last, playerId, result);
+        }
+      }
+      catch (IOException e) {
+        System.out.println("[SimpleServer] " + e);
+      }
+
+      // The running hour is not part of the running day until it ends.
+      if (resolution != MINUTE) {
+        addRunning(hour, currentHour * RESOLUTION_MILLIS[HOUR], resolution,
+                   counter, first, last, playerId, result);
+      }
+      if (resolution == DAY) {
+        addRunning(day, currentDay * RESOLUTION_MILLIS[DAY], resolution,
+                   counter, first, last, playerId, result);
+      }
+    }
+    return result;
+  }
+
+  public static long bucketStart(long bucket, int resolution) {
+    return bucket * RESOLUTION_MILLIS[resolution];
+  }
+
+  /**
+   * Returns the index of name in names (COUNTER_NAMES or RESOLUTION_NAMES),
+   * or -1.
+   */
+  public static int parse(String name, String[] names) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equalsIgnoreCase(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int bucket(long millis, int resolution) {
+    return (int) (millis / RESOLUTION_MILLIS[resolution]);
+  }
+
+  /**
+   * Collects the minute that just ended and rolls the hour and day over when
+   * they end.
+   */
+  private void roll(long now) throws IOException {
+    int minute = bucket(now, MINUTE);
+    if (minute == currentMinute) {
+      return;
+    }
+    collect();
+    currentMinute = minute;
+
+    int newHour = bucket(now, HOUR);
+    if (newHour != currentHour) {
+      closeHour();
+      currentHour = newHour;
+    }
+    int newDay = bucket(now, DAY);
+    if (newDay != currentDay) {
+      closeDay();
+      currentDay = newDay;
+      deleteOldMinutes();
+    }
+  }
+
+  private void collect() throws IOException {
+    Map<Integer, int[]> minute = new HashMap<Integer, int[]>();
+    for (Counters counters : active.keySet()) {
+      int[] values = counters.drain();
+      values[MINUTES]++;
+      add(minute, counters.player, values);
+    }
+    synchronized (departed) {
+      for (Entry<Integer, int[]> entry : departed.entrySet()) {
+        add(minute, entry.getKey(), entry.getValue());
+      }
+      departed.clear();
+    }
+
+    savePlayers();
+    append(minuteFile(currentMinute / MINUTES_PER_DAY), currentMinute, minute);
+    for (Entry<Integer, int[]> entry : minute.entrySet()) {
+      add(hour, entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void closeHour() throws IOException {
+    append(file(HOUR), currentHour, hour);
+    for (Entry<Integer, int[]> entry : hour.entrySet()) {
+      add(day, entry.getKey(), entry.getValue());
+    }
+    hour.clear();
+  }
+
+  private void closeDay() throws IOException {
+    append(file(DAY), currentDay, day);
+    day.clear();
+  }
+
+  private static void add(Map<Integer, int[]> sums, int player, int[] values) {
+    int[] sum = sums.get(player);
+    if (sum == null) {
+      sums.put(player, values.clone());
+      return;
+    }
+    for (int i = 0; i < COUNTERS; i++) {
+      sum[i] += values[i];
+    }
+  }
+
+  private void append(File file, int bucket, Map<Integer, int[]> records)
+      throws IOException {
+    if (records.isEmpty()) {
+      return;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(records.size() * RECORD_SIZE);
+    for (Entry<Integer, int[]> entry : records.entrySet()) {
+      buffer.putInt(bucket);
+      buffer.putInt(entry.getKey());
+      for (int value : entry.getValue()) {
+        buffer.putInt(value);
+      }
+    }
+    buffer.flip();
+
+    FileOutputStream output = new FileOutputStream(file, true);
+    try {
+      FileChannel channel = output.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  private void read(File file, int counter, int first, int last,
+                    int playerId, long[] result) throws IOException {
+    RandomAccessFile input;
+    try {
+      input = new RandomAccessFile(file, "r");
+    }
+    catch (FileNotFoundException e) {
+      return;
+    }
+
+    try {
+      FileChannel channel = input.getChannel();
+      long end = channel.size() / RECORD_SIZE * RECORD_SIZE;
+
+      // Find the first record of a bucket not before first.
+      ByteBuffer key = ByteBuffer.allocate(4);
+      long low = 0;
+      long high = end / RECORD_SIZE;
+      while (low < high) {
+        long middle = (low + high) >>> 1;
+        key.clear();
+        channel.read(key, middle * RECORD_SIZE);
+        if (key.getInt(0) < first) {
+          low = middle + 1;
+        }
+        else {
+          high = middle;
+        }
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+      long position = low * RECORD_SIZE;
+      while (position < end) {
+        buffer.clear();
+        if (end - position < buffer.capacity()) {
+          buffer.limit((int) (end - position));
+        }
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, position + buffer.position()) < 0) {
+            return;
+          }
+        }
+        position += buffer.position();
+        buffer.flip();
+
+        for (int offset = 0; offset < buffer.limit(); offset += RECORD_SIZE) {
+          int bucket = buffer.getInt(offset);
+          if (bucket > last) {
+            return;
+          }
+          if (playerId < 0 || buffer.getInt(offset + 4) == playerId) {
+            result[bucket - first + 1] += buffer.getInt(offset + 8 + 4 * counter);
+          }
+        }
+      }
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  private static void addRunning(Map<Integer, int[]> running, long start,
+                                 int resolution, int counter, int first,
+                                 int last, int playerId, long[] result) {
+    int bucket = bucket(start, resolution);
+    if (bucket < first || bucket > last) {
+      return;
+    }
+    for (Entry<Integer, int[]> entry : running.entrySet()) {
+      if (playerId < 0 || entry.getKey() == playerId) {
+        result[bucket - first + 1] += entry.getValue()[counter];
+      }
+    }
+  }
+
+  private int playerId(String name) {
+    name = name.toLowerCase();
+    synchronized (playerIds) {
+      Integer id = playerIds.get(name);
+      if (id == null) {
+        id = playerIds.size();
+        playerIds.put(name, id);
+        unsavedNames.add(name);
+      }
+      return id;
+    }
+  }
+
+  private void loadPlayers() {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(playersFile()));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          playerIds.put(line, playerIds.size());
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (FileNotFoundException e) {
+    }
+    catch (IOException e) {
+      System.out.println("[SimpleServer] " + e);
+      System.out.println("[SimpleServer] Failed to load activity players!");
+    }
+  }
+
+  /**
+   * Appends the names of new players; a player's id is their line number.
+   */
+  private void savePlayers() throws IOException {
+    synchronized (playerIds) {
+      if (unsavedNames.isEmpty()) {
+        return;
+      }
+      Writer writer = new FileWriter(playersFile(), true);
+      try {
+        for (String name : unsavedNames) {
+          writer.write(name);
+          writer.write('\n');
+        }
+      }
+      finally {
+        writer.close();
+      }
+      unsavedNames.clear();
+    }
+  }
+
+  private void deleteOldMinutes() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith("minutes-") && name.endsWith(".dat")) {
+        try {
+          int fileDay = Integer.parseInt(name.substring(8, name.length() - 4));
+          if (fileDay <= currentDay - MINUTE_RETENTION_DAYS) {
+            file.delete();
+          }
+        }
+        catch (NumberFormatException e) {
+        }
+      }
+    }
+  }
+
+  private File playersFile() {
+    return new File(directory, "players.txt");
+  }
+
+  private File minuteFile(int day) {
+    return new File(directory, "minutes-" + day + ".dat");
+  }
+
+  private File file(int resolution) {
+    return new File(directory, RESOLUTION_NAMES[resolution] + "s.dat");
+  }
+
+  public static final class Counters {
+    private final int player;
+    private final AtomicIntegerArray values;
+
+    private Counters(int player) {
+      this.player = player;
+      values = new AtomicIntegerArray(COUNTERS);
+    }
+
+    public void increment(int counter) {
+      values.incrementAndGet(counter);
+    }
+
+    private int[] drain() {
+      int[] drained = new int[COUNTERS];
+      for (int i = 0; i < COUNTERS; i++) {
+        drained[i] = values.getAndSet(i, 0);
+      }
+      return drained;
+    }
+  }
+
+  private final class Roller extends Thread {
+    @Override
+    public void run() {
+      while (run) {
+        long now = System.currentTimeMillis();
+        long next = (bucket(now, MINUTE) + 1) * RESOLUTION_MILLIS[MINUTE];
+        try {
+          Thread.sleep(next - now + 10);
+        }
+        catch (InterruptedException e) {
+          continue;
+        }
+
+        synchronized (bucketLock) {
+          try {
+            roll(System.currentTimeMillis());
+          }
+          catch (IOException e) {
+            System.out.println("[SimpleServer] " + e);
+            System.out.println("[SimpleServer] Failed to save activity!");
+          }
+        }
+      }
+    }
+  }
+}
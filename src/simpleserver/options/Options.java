@@ -33,12 +33,21 @@ public class Options extends AbstractOptions {
       "warpmeto", "tp", "home", "give", "giveplayer", "mute", "unmute",
       "setgroup", null, null };
 
+  private volatile OptionsSnapshot snapshot;
+
   public Options() {
     super("simpleserver.properties");
+
+    snapshot = new OptionsSnapshot(this);
   }
 
   public void set(String option, String value) {
     options.setProperty(option, value);
+    snapshot = new OptionsSnapshot(this);
+  }
+
+  public OptionsSnapshot snapshot() {
+    return snapshot;
   }
 
   @Override
@@ -66,6 +75,8 @@ public class Options extends AbstractOptions {
       in.nextLine();
       System.exit(0);
     }
+
+    snapshot = new OptionsSnapshot(this);
   }
 
   @Override
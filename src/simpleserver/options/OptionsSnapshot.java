@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.options;
+
+/**
+ * Immutable, already parsed copy of the options read on every packet or
+ * chat message. {@link Options} publishes a new one whenever it is loaded or
+ * changed, so readers never touch the synchronized Properties table.
+ */
+public final class OptionsSnapshot {
+  public final boolean useMsgFormats;
+  public final String msgFormat;
+  public final String msgTitleFormat;
+  public final boolean showListOnConnect;
+  public final int localChatRadius;
+  public final int maxPlayers;
+  public final String commandPrefix;
+  public final int messageQueueSize;
+  public final boolean dropOldestMessages;
+
+  OptionsSnapshot(Options options) {
+    useMsgFormats = options.getBoolean("useMsgFormats");
+    msgFormat = options.get("msgFormat");
+    msgTitleFormat = options.get("msgTitleFormat");
+    showListOnConnect = options.getBoolean("showListOnConnect");
+    localChatRadius = options.getInt("localChatRadius");
+    maxPlayers = options.getInt("maxPlayers");
+    commandPrefix = options.getBoolean("useSlashes") ? "/" : "!";
+    messageQueueSize = options.getInt("messageQueueSize");
+    dropOldestMessages = !options.get("messageQueuePolicy").equals("dropNewest");
+  }
+}
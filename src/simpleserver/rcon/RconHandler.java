@@ -26,9 +26,23 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
 import java.util.concurrent.Semaphore;
 
+import simpleserver.Coordinate;
+import simpleserver.MessageOutbox;
+import simpleserver.Player;
 import simpleserver.Server;
+import simpleserver.config.ChestList;
+import simpleserver.config.ChestList.Chest;
+import simpleserver.config.Leaderboard;
+import simpleserver.config.PersistenceService;
+import simpleserver.config.Stats.Metric;
+import simpleserver.log.ActivityStore;
+import simpleserver.stream.TrafficStatistics;
+import simpleserver.thread.ThreadLauncher;
 
 public class RconHandler implements Runnable {
   private final int BUF_SIZE = 8192;
@@ -242,20 +256,79 @@ public class RconHandler implements Runnable {
           return "Error: No Command";
         }
       }
+      if (tokens[0].equalsIgnoreCase("chests")) {
+        return chests(tokens);
+      }
+      if (tokens[0].equalsIgnoreCase("top")) {
+        return top(tokens);
+      }
+      if (tokens[0].equalsIgnoreCase("activity")) {
+        return activity(tokens);
+      }
       if (tokens[0].equalsIgnoreCase("help")) {
         if (tokens.length > 1) {
           if (tokens[1].equalsIgnoreCase("get")) {
-            return "Resources:\n" + "console    Shows console output\n";
+            return "Resources:\n" + "console    Shows console output\n"
+                + "threads    Shows connection threads per player\n"
+                + "traffic    Shows tunnel traffic counters\n"
+                + "flushes    Shows flush coalescing per player\n"
+                + "messages   Shows queued and dropped chat lines\n"
+                + "saves      Shows pending and written config files\n"
+                + "requests   Shows accepted and rate limited connections\n"
+                + "logins     Shows login pipeline queues and latency\n"
+                + "backend    Shows pooled connections to the Minecraft server\n"
+                + "resources  Shows how long each resource took to load\n";
           }
         }
         return "Commands:\n" + "help    Shows this message\n"
-            + "rcon    Execute Command\n" + "get    Get a resource";
+            + "rcon    Execute Command\n" + "get    Get a resource\n"
+            + "chests    owner NAME | name NAME | area X1 Z1 X2 Z2 | release OWNER\n"
+            + "top    minutes|placed|destroyed [COUNT] | minutes|placed|destroyed rank NAME\n"
+            + "activity    placed|destroyed|joins|minutes minute|hour|day COUNT [PLAYER]";
       }
       if (tokens[0].equalsIgnoreCase("get")) {
         if (tokens.length > 1) {
           if (tokens[1].equalsIgnoreCase("console")) {
             return getConsole();
           }
+          if (tokens[1].equalsIgnoreCase("threads")) {
+            return ThreadLauncher.report(server.numPlayers());
+          }
+          if (tokens[1].equalsIgnoreCase("traffic")) {
+            return TrafficStatistics.report();
+          }
+          if (tokens[1].equalsIgnoreCase("messages")) {
+            StringBuilder report = new StringBuilder();
+            for (Player player : server.playerList.getArray()) {
+              MessageOutbox outbox = player.getOutbox();
+              report.append(player.getName() + ": " + outbox.depth()
+                  + " queued, " + outbox.drops() + " dropped\n");
+            }
+            report.append("Total dropped: " + MessageOutbox.totalDrops() + "\n");
+            return report.toString();
+          }
+          if (tokens[1].equalsIgnoreCase("resources")) {
+            return server.getLoadReport();
+          }
+          if (tokens[1].equalsIgnoreCase("backend")) {
+            return server.backendPool.report();
+          }
+          if (tokens[1].equalsIgnoreCase("logins")) {
+            return server.loginPipeline.report();
+          }
+          if (tokens[1].equalsIgnoreCase("requests")) {
+            return server.requestTracker.report();
+          }
+          if (tokens[1].equalsIgnoreCase("saves")) {
+            return PersistenceService.report();
+          }
+          if (tokens[1].equalsIgnoreCase("flushes")) {
+            StringBuilder report = new StringBuilder();
+            for (Player player : server.playerList.getArray()) {
+              report.append(player.getFlushReport()).append("\n");
+            }
+            return report.toString();
+          }
         }
         return "Error: No Command";
       }
@@ -263,6 +336,117 @@ public class RconHandler implements Runnable {
     return "Error: Unrecognized Command";
   }
 
+  private String top(String[] tokens) {
+    Metric metric = (tokens.length > 1) ? Metric.parse(tokens[1]) : null;
+    if (metric == null) {
+      return "Error: Unknown statistic";
+    }
+    Leaderboard leaderboard = server.stats.getLeaderboard(metric);
+
+    if (tokens.length == 4 && tokens[2].equalsIgnoreCase("rank")) {
+      int rank = server.stats.getRank(tokens[3], metric);
+      if (rank == 0) {
+        return tokens[3] + " has no statistics\n";
+      }
+      return tokens[3] + " is ranked " + rank + " of " + leaderboard.size()
+          + "\n";
+    }
+
+    int count = 10;
+    if (tokens.length == 3) {
+      try {
+        count = Integer.parseInt(tokens[2]);
+      }
+      catch (NumberFormatException e) {
+        return "Error: Count must be a number";
+      }
+    }
+    else if (tokens.length != 2) {
+      return "Error: Unrecognized Command";
+    }
+
+    StringBuilder output = new StringBuilder();
+    int rank = 1;
+    for (Leaderboard.Entry entry : leaderboard.top(1, count)) {
+      output.append(rank++ + ". " + entry.name + " " + entry.score + "\n");
+    }
+    return output.toString();
+  }
+
+  private String activity(String[] tokens) {
+    if (tokens.length < 4 || tokens.length > 5) {
+      return "Error: Unrecognized Command";
+    }
+    int counter = ActivityStore.parse(tokens[1], ActivityStore.COUNTER_NAMES);
+    int resolution = ActivityStore.parse(tokens[2],
+                                         ActivityStore.RESOLUTION_NAMES);
+    if (counter < 0 || resolution < 0) {
+      return "Error: Unknown counter or resolution";
+    }
+    int count;
+    try {
+      count = Integer.parseInt(tokens[3]);
+    }
+    catch (NumberFormatException e) {
+      return "Error: Count must be a number";
+    }
+    if (count < 1 || count > 50000) {
+      return "Error: Count must be between 1 and 50000";
+    }
+
+    String player = (tokens.length == 5) ? tokens[4] : null;
+    long[] series = server.activity.query(counter, resolution, count, player);
+    StringBuilder output = new StringBuilder();
+    // Buckets are counted in UTC, so they are printed in UTC as well.
+    Calendar start = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    for (int i = 1; i < series.length; i++) {
+      start.setTimeInMillis(ActivityStore.bucketStart(series[0] + i - 1,
+                                                      resolution));
+      output.append(String.format("%tF %1$tR UTC\t%d\n", start, series[i]));
+    }
+    return output.toString();
+  }
+
+  private String chests(String[] tokens) {
+    ChestList chests = server.chests;
+    List<Chest> found;
+    try {
+      if (tokens.length == 3 && tokens[1].equalsIgnoreCase("owner")) {
+        found = chests.getChestsByOwner(tokens[2]);
+      }
+      else if (tokens.length == 3 && tokens[1].equalsIgnoreCase("name")) {
+        found = chests.getChestsByName(tokens[2]);
+      }
+      else if (tokens.length == 6 && tokens[1].equalsIgnoreCase("area")) {
+        found = chests.getChestsInArea(Integer.parseInt(tokens[2]),
+                                       Integer.parseInt(tokens[3]),
+                                       Integer.parseInt(tokens[4]),
+                                       Integer.parseInt(tokens[5]));
+      }
+      else if (tokens.length == 3 && tokens[1].equalsIgnoreCase("release")) {
+        int released = chests.releaseLocks(tokens[2]);
+        server.adminLog("RCON released " + released + " chest locks of "
+            + tokens[2]);
+        return "Released " + released + " chests\n";
+      }
+      else {
+        return "Error: Unrecognized Command";
+      }
+    }
+    catch (NumberFormatException e) {
+      return "Error: Coordinates must be numbers";
+    }
+
+    StringBuilder output = new StringBuilder();
+    for (Chest chest : found) {
+      Coordinate coordinate = chest.coordinate();
+      output.append(chest.owner() + " " + coordinate.x + "," + coordinate.y
+          + "," + coordinate.z + " " + chest.name() + "\n");
+    }
+    output.append(found.size() + " chests\n");
+    return output.toString();
+  }
+
   protected String auth(String passwd) {
     if (!server.options.contains("rconPassword")) {
       System.out.println("[SimpleServer] RCON Auth Attempt from "
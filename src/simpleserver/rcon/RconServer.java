@@ -109,6 +109,14 @@ public class RconServer {
             }
             break;
           }
+          if (!server.requestTracker.addRequest(client.getInetAddress())) {
+            try {
+              client.close();
+            }
+            catch (IOException e) {
+            }
+            continue;
+          }
           connections.add(new RconTCP(client, server));
         }
       }
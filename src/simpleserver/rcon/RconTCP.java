@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.net.Socket;
 
 import simpleserver.Server;
+import simpleserver.thread.ThreadLauncher;
 
 public class RconTCP {
   private Socket socket;
@@ -37,15 +38,13 @@ public class RconTCP {
 
     System.out.println("[SimpleServer] RCON Connection from " + getIPAddress()
         + "!");
-    server.requestTracker.addRequest(getIPAddress());
-    if (server.isIPBanned(getIPAddress())) {
+    if (server.isIPBanned(socket.getInetAddress())) {
       System.out.println("[SimpleServer] IP " + getIPAddress() + " is banned!");
       close();
     }
 
     lastRead = System.currentTimeMillis();
-    t1 = new Thread() {
-      @Override
+    t1 = ThreadLauncher.start("RconTimeout", new Runnable() {
       public void run() {
         if (testTimeout()) {
           close();
@@ -58,11 +57,10 @@ public class RconTCP {
           return;
         }
       }
-    };
-    t1.start();
+    });
 
     try {
-      new Thread(new RconHandler(socket, this, server)).start();
+      ThreadLauncher.start("RconHandler", new RconHandler(socket, this, server));
     }
     catch (IOException e) {
       e.printStackTrace();
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.util.IllegalFormatException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import simpleserver.Group;
+import simpleserver.Player;
+import simpleserver.Server;
+import simpleserver.options.OptionsSnapshot;
+
+/**
+ * Applies msgFormat and msgTitleFormat to server chat lines. The formats are
+ * parsed once per options snapshot, the formatted prefix is cached per sender
+ * and group, and the encoded result of a line is shared by every tunnel that
+ * forwards the same line to its client.
+ */
+public class ChatFormatter {
+  private static final int LINE_CACHE_SIZE = 16;
+  private static final long LINE_TTL = 1000000000L;
+  private static final int MAXIMUM_PREFIXES = 1024;
+
+  private final Server server;
+  private final ConcurrentMap<String, Prefix> prefixes;
+  private final AtomicReferenceArray<Line> lines;
+  private volatile Templates templates;
+
+  public ChatFormatter(Server server) {
+    this.server = server;
+    prefixes = new ConcurrentHashMap<String, Prefix>();
+    lines = new AtomicReferenceArray<Line>(LINE_CACHE_SIZE);
+  }
+
+  /**
+   * Formats a chat line given as its wire encoding (big-endian UTF-16 chars,
+   * without the length). Returns the encoded string to send, including the
+   * length.
+   */
+  public byte[] format(byte[] raw, int length, OptionsSnapshot options) {
+    int hash = 1;
+    for (int c = 0; c < length; ++c) {
+      hash = 31 * hash + raw[c];
+    }
+
+    int slot = (hash & 0x7fffffff) % LINE_CACHE_SIZE;
+    long now = System.nanoTime();
+    Line line = lines.get(slot);
+    if (line != null && line.matches(raw, length, hash, options, now)) {
+      return line.encoded;
+    }
+
+    line = new Line(raw, length, hash, options, now);
+    line.encoded = encode(format(decode(raw, length), options, line));
+    lines.set(slot, line);
+    return line.encoded;
+  }
+
+  private String format(String message, OptionsSnapshot options, Line line) {
+    String clean = stripColors(message);
+
+    int end = nameEnd(clean);
+    if (end < 0) {
+      return message;
+    }
+
+    String name = clean.substring(1, end);
+    Player friend = server.findPlayerExact(name);
+    if (friend == null) {
+      return message;
+    }
+
+    Group group = friend.getGroup();
+    line.sender = friend;
+    line.group = group;
+
+    String prefix = prefix(name, friend, group, options);
+    if (prefix == null) {
+      return message;
+    }
+    return prefix.concat(clean.substring(end + 2));
+  }
+
+  private String prefix(String name, Player friend, Group group,
+                        OptionsSnapshot options) {
+    Prefix prefix = prefixes.get(name);
+    if (prefix != null && prefix.sender == friend && prefix.group == group
+        && prefix.options == options) {
+      return prefix.text;
+    }
+
+    Templates templates = this.templates;
+    if (templates == null || templates.options != options) {
+      templates = new Templates(options);
+      this.templates = templates;
+    }
+
+    String color = "f";
+    String title = "";
+    Template template = templates.format;
+    if (group != null) {
+      color = group.getColor();
+      if (group.showTitle()) {
+        title = group.getName();
+        template = templates.titleFormat;
+      }
+    }
+
+    String text;
+    try {
+      text = template.apply(friend.getName(), title, color);
+    }
+    catch (IllegalFormatException e) {
+      System.out.println("[SimpleServer] There is an error in your msgFormat/msgTitleFormat settings!");
+      return null;
+    }
+
+    if (prefixes.size() >= MAXIMUM_PREFIXES) {
+      prefixes.clear();
+    }
+    prefixes.put(name, new Prefix(friend, group, options, text));
+    return text;
+  }
+
+  /**
+   * Returns the index of the '>' closing a leading "<name> ", or -1 when the
+   * line is not a player chat line.
+   */
+  private static int nameEnd(String message) {
+    int length = message.length();
+    if (length < 3 || message.charAt(0) != '<') {
+      return -1;
+    }
+
+    int end = message.indexOf('>', 1);
+    if (end < 2 || end + 1 >= length || message.charAt(end + 1) != ' ') {
+      return -1;
+    }
+
+    for (int c = end + 2; c < length; ++c) {
+      char character = message.charAt(c);
+      if (character == '\n' || character == '\r') {
+        return -1;
+      }
+    }
+    return end;
+  }
+
+  private static String stripColors(String message) {
+    int index = message.indexOf('\u00a7');
+    if (index < 0) {
+      return message;
+    }
+
+    int length = message.length();
+    StringBuilder clean = new StringBuilder(length);
+    clean.append(message, 0, index);
+    for (int c = index; c < length; ++c) {
+      char character = message.charAt(c);
+      if (character == '\u00a7' && c + 1 < length
+          && isColorCode(message.charAt(c + 1))) {
+        ++c;
+      }
+      else {
+        clean.append(character);
+      }
+    }
+    return clean.toString();
+  }
+
+  private static boolean isColorCode(char character) {
+    return (character >= '0' && character <= '9')
+        || (character >= 'a' && character <= 'f');
+  }
+
+  private static String decode(byte[] raw, int length) {
+    char[] chars = new char[length / 2];
+    for (int c = 0; c < chars.length; ++c) {
+      chars[c] = (char) (((raw[c * 2] & 0xff) << 8) | (raw[c * 2 + 1] & 0xff));
+    }
+    return new String(chars);
+  }
+
+  private static byte[] encode(String message) {
+    int length = message.length();
+    byte[] bytes = new byte[length * 2 + 2];
+    bytes[0] = (byte) (length >> 8);
+    bytes[1] = (byte) length;
+    for (int c = 0; c < length; ++c) {
+      char character = message.charAt(c);
+      bytes[c * 2 + 2] = (byte) (character >> 8);
+      bytes[c * 2 + 3] = (byte) character;
+    }
+    return bytes;
+  }
+
+  private static final class Templates {
+    private final OptionsSnapshot options;
+    private final Template format;
+    private final Template titleFormat;
+
+    private Templates(OptionsSnapshot options) {
+      this.options = options;
+      format = new Template(options.msgFormat);
+      titleFormat = new Template(options.msgTitleFormat);
+    }
+  }
+
+  /**
+   * A message format split into literal text and references to the name (1),
+   * title (2) and color (3) arguments. Formats using anything beyond plain
+   * %s conversions are left to String.format.
+   */
+  private static final class Template {
+    private final String format;
+    private final String[] literals;
+    private final int[] arguments;
+
+    private Template(String format) {
+      this.format = format;
+
+      String[] literals = new String[format.length() + 1];
+      int[] arguments = new int[format.length()];
+      int count = 0;
+      int next = 1;
+      StringBuilder literal = new StringBuilder();
+      for (int c = 0; c < format.length(); ++c) {
+        char character = format.charAt(c);
+        if (character != '%') {
+          literal.append(character);
+          continue;
+        }
+
+        if (c + 1 < format.length() && format.charAt(c + 1) == '%') {
+          literal.append('%');
+          ++c;
+          continue;
+        }
+
+        int argument;
+        if (c + 1 < format.length() && format.charAt(c + 1) == 's') {
+          argument = next++;
+          c += 1;
+        }
+        else if (c + 3 < format.length() && format.charAt(c + 2) == '$'
+            && format.charAt(c + 3) == 's' && format.charAt(c + 1) >= '1'
+            && format.charAt(c + 1) <= '3') {
+          argument = format.charAt(c + 1) - '0';
+          c += 3;
+        }
+        else {
+          argument = -1;
+        }
+
+        if (argument < 1 || argument > 3) {
+          this.literals = null;
+          this.arguments = null;
+          return;
+        }
+
+        literals[count] = literal.toString();
+        arguments[count++] = argument;
+        literal.setLength(0);
+      }
+      literals[count] = literal.toString();
+
+      this.literals = new String[count + 1];
+      this.arguments = new int[count];
+      System.arraycopy(literals, 0, this.literals, 0, count + 1);
+      System.arraycopy(arguments, 0, this.arguments, 0, count);
+    }
+
+    private String apply(String name, String title, String color) {
+      if (literals == null) {
+        return String.format(format, name, title, color);
+      }
+
+      StringBuilder text = new StringBuilder(literals[0]);
+      for (int c = 0; c < arguments.length; ++c) {
+        switch (arguments[c]) {
+          case 1:
+            text.append(name);
+            break;
+          case 2:
+            text.append(title);
+            break;
+          case 3:
+            text.append(color);
+            break;
+        }
+        text.append(literals[c + 1]);
+      }
+      return text.toString();
+    }
+  }
+
+  private static final class Prefix {
+    private final Player sender;
+    private final Group group;
+    private final OptionsSnapshot options;
+    private final String text;
+
+    private Prefix(Player sender, Group group, OptionsSnapshot options,
+                   String text) {
+      this.sender = sender;
+      this.group = group;
+      this.options = options;
+      this.text = text;
+    }
+  }
+
+  private static final class Line {
+    private final byte[] raw;
+    private final int hash;
+    private final OptionsSnapshot options;
+    private final long created;
+    private Player sender;
+    private Group group;
+    private byte[] encoded;
+
+    private Line(byte[] raw, int length, int hash, OptionsSnapshot options,
+                 long created) {
+      this.raw = new byte[length];
+      System.arraycopy(raw, 0, this.raw, 0, length);
+      this.hash = hash;
+      this.options = options;
+      this.created = created;
+    }
+
+    private boolean matches(byte[] raw, int length, int hash,
+                            OptionsSnapshot options, long now) {
+      if (this.hash != hash || this.raw.length != length
+          || this.options != options || now - created > LINE_TTL
+          || (sender != null && sender.getGroup() != group)) {
+        return false;
+      }
+      for (int c = 0; c < length; ++c) {
+        if (this.raw[c] != raw[c]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
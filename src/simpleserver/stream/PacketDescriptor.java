@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire layout of one packet id, and whether each direction has to inspect it.
+ * Packets that neither direction inspects are forwarded without decoding.
+ */
+public final class PacketDescriptor {
+  public static final int BYTES = 0;
+  public static final int STRING16 = 1;
+  public static final int STRING8 = 2;
+  public static final int METADATA = 3;
+  public static final int ITEM = 4;
+  public static final int INT_COUNT = 5;
+  public static final int SHORT_COUNT = 6;
+  public static final int ITEM_COUNT = 7;
+
+  private static final int NONE = 0;
+  private static final int TO_SERVER = 1;
+  private static final int TO_CLIENT = 2;
+  private static final int BOTH = TO_SERVER | TO_CLIENT;
+
+  private static final PacketDescriptor[] table = new PacketDescriptor[256];
+
+  static {
+    fixed(0x00, "Keep Alive", 0, NONE);
+    layout(0x01, "Login Request/Response", BOTH, BYTES, 4, STRING16, 0, BYTES, 9);
+    layout(0x02, "Handshake", BOTH, STRING16, 0);
+    layout(0x03, "Chat Message", BOTH, STRING16, 0);
+    fixed(0x04, "Time Update", 8, NONE);
+    fixed(0x05, "Player Inventory", 10, NONE);
+    fixed(0x06, "Spawn Position", 12, NONE);
+    fixed(0x07, "Use Entity", 9, BOTH);
+    fixed(0x08, "Update Health", 2, NONE);
+    fixed(0x09, "Respawn", 0, NONE);
+    fixed(0x0a, "Player", 1, TO_SERVER);
+    fixed(0x0b, "Player Position", 33, TO_SERVER);
+    fixed(0x0c, "Player Look", 9, NONE);
+    fixed(0x0d, "Player Position & Look", 41, TO_SERVER);
+    fixed(0x0e, "Player Digging", 11, TO_SERVER);
+    layout(0x0f, "Player Block Placement", BOTH, BYTES, 10, ITEM, 0);
+    fixed(0x10, "Holding Change", 2, NONE);
+    fixed(0x11, "Use Bed", 14, NONE);
+    fixed(0x12, "Animation", 5, NONE);
+    fixed(0x13, "Entity Action", 5, NONE);
+    layout(0x14, "Named Entity Spawn", NONE, BYTES, 4, STRING16, 0, BYTES, 16);
+    fixed(0x15, "Pickup Spawn", 24, BOTH);
+    fixed(0x16, "Collect Item", 8, NONE);
+    fixed(0x17, "Add Object/Vehicle", 17, NONE);
+    layout(0x18, "Mob Spawn", NONE, BYTES, 19, METADATA, 0);
+    layout(0x19, "Painting", NONE, BYTES, 4, STRING16, 0, BYTES, 16);
+    fixed(0x1b, "Stance Update", 18, NONE);
+    fixed(0x1c, "Entity Velocity", 10, NONE);
+    fixed(0x1d, "Destroy Entity", 4, NONE);
+    fixed(0x1e, "Entity", 4, NONE);
+    fixed(0x1f, "Entity Relative Move", 7, NONE);
+    fixed(0x20, "Entity Look", 6, NONE);
+    fixed(0x21, "Entity Look and Relative Move", 9, NONE);
+    fixed(0x22, "Entity Teleport", 18, NONE);
+    fixed(0x26, "Entity Status", 5, NONE);
+    fixed(0x27, "Attach Entity", 8, NONE);
+    layout(0x28, "Entity Metadata", NONE, BYTES, 4, METADATA, 0);
+    fixed(0x32, "Pre-Chunk", 9, NONE);
+    layout(0x33, "Map Chunk", NONE, BYTES, 13, INT_COUNT, 1);
+    layout(0x34, "Multi Block Change", NONE, BYTES, 8, SHORT_COUNT, 4);
+    fixed(0x35, "Block Change", 11, BOTH);
+    fixed(0x36, "Play Note Block", 12, NONE);
+    layout(0x3c, "Explosion", NONE, BYTES, 28, INT_COUNT, 3);
+    fixed(0x46, "Invalid Bed", 1, NONE);
+    fixed(0x47, "Weather", 17, NONE);
+    layout(0x64, "Open Window", BOTH, BYTES, 2, STRING8, 0, BYTES, 1);
+    fixed(0x65, "Close Window", 1, NONE);
+    layout(0x66, "Inventory Item Move", BOTH, BYTES, 7, ITEM, 0);
+    layout(0x67, "Inventory Item Update", BOTH, BYTES, 3, ITEM, 0);
+    layout(0x68, "Inventory", BOTH, BYTES, 1, ITEM_COUNT, 0);
+    fixed(0x69, "Update Progress Bar", 5, NONE);
+    fixed(0x6a, "Transaction", 4, NONE);
+    layout(0x82, "Update Sign", NONE, BYTES, 10, STRING16, 0, STRING16, 0,
+           STRING16, 0, STRING16, 0);
+    fixed(0xc8, "Increment Statistic", 5, NONE);
+    layout(0xff, "Disconnect/Kick", BOTH, STRING16, 0);
+  }
+
+  private final byte id;
+  private final String name;
+  private final int length;
+  private final int[] layout;
+  private final int inspect;
+
+  private PacketDescriptor(int id, String name, int length, int[] layout,
+                           int inspect) {
+    this.id = (byte) id;
+    this.name = name;
+    this.length = length;
+    this.layout = layout;
+    this.inspect = inspect;
+  }
+
+  public static PacketDescriptor forId(byte id) {
+    return table[id & 0xff];
+  }
+
+  public byte id() {
+    return id;
+  }
+
+  public String name() {
+    return name;
+  }
+
+  public boolean isFixed() {
+    return length >= 0;
+  }
+
+  /**
+   * Length of the packet body (excluding the id) for fixed-size packets, or
+   * -1 for packets with a variable layout.
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Layout of a variable-size packet as pairs of field type and argument.
+   * BYTES takes a byte count, the *_COUNT types a per-element size.
+   */
+  int[] layout() {
+    return layout;
+  }
+
+  /**
+   * True for packets made of a fixed header, a count, and an opaque payload
+   * of count times an element size (chunks, block changes, explosions).
+   */
+  public boolean isBulk() {
+    return layout != null && layout.length == 4 && layout[0] == BYTES
+        && (layout[2] == INT_COUNT || layout[2] == SHORT_COUNT);
+  }
+
+  /**
+   * Length of the id, fixed header and count of a bulk packet.
+   */
+  public int bulkHeaderLength() {
+    return 1 + layout[1] + (layout[2] == INT_COUNT ? 4 : 2);
+  }
+
+  /**
+   * Reads the payload length of a bulk packet whose id is at offset.
+   */
+  public int bulkPayloadLength(ByteBuffer buffer, int offset) {
+    int countOffset = offset + 1 + layout[1];
+    long count;
+    if (layout[2] == INT_COUNT) {
+      count = buffer.getInt(countOffset);
+    }
+    else {
+      count = buffer.getShort(countOffset);
+    }
+    long payload = count * layout[3];
+    return (payload > Integer.MAX_VALUE) ? -1 : (int) payload;
+  }
+
+  public boolean isInspected(boolean isServerTunnel) {
+    return (inspect & (isServerTunnel ? TO_CLIENT : TO_SERVER)) != 0;
+  }
+
+  public boolean isForwarded(boolean isServerTunnel) {
+    return !isInspected(isServerTunnel);
+  }
+
+  private static void fixed(int id, String name, int length, int inspect) {
+    table[id] = new PacketDescriptor(id, name, length, null, inspect);
+  }
+
+  private static void layout(int id, String name, int inspect, int... layout) {
+    table[id] = new PacketDescriptor(id, name, -1, layout, inspect);
+  }
+}
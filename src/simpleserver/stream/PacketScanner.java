@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Determines packet boundaries without consuming or interpreting the packet,
+ * so that a non-blocking tunnel only hands complete packets to
+ * {@link StreamTunnel}.
+ */
+public final class PacketScanner {
+  public static final int INCOMPLETE = -1;
+
+  private ByteBuffer buffer;
+  private int position;
+  private int limit;
+
+  /**
+   * Returns the length of the packet starting at the buffer's position
+   * (including the packet id), or INCOMPLETE if more bytes are needed.
+   */
+  public int packetLength(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    position = buffer.position();
+    limit = buffer.limit();
+
+    try {
+      scan();
+    }
+    catch (Incomplete e) {
+      return INCOMPLETE;
+    }
+    return position - buffer.position();
+  }
+
+  private void scan() throws IOException, Incomplete {
+    byte packetId = readByte();
+    PacketDescriptor descriptor = PacketDescriptor.forId(packetId);
+    if (descriptor == null) {
+      throw new IOException("Unable to frame unknown packet 0x"
+          + Integer.toHexString(packetId & 0xff));
+    }
+
+    if (descriptor.isFixed()) {
+      skip(descriptor.length());
+      return;
+    }
+
+    int[] layout = descriptor.layout();
+    for (int c = 0; c < layout.length; c += 2) {
+      int size = layout[c + 1];
+      switch (layout[c]) {
+        case PacketDescriptor.BYTES:
+          skip(size);
+          break;
+        case PacketDescriptor.STRING16:
+          skipUTF16();
+          break;
+        case PacketDescriptor.STRING8:
+          skip(readShort() & 0xffff);
+          break;
+        case PacketDescriptor.METADATA:
+          skipUnknownBlob();
+          break;
+        case PacketDescriptor.ITEM:
+          skipItem();
+          break;
+        case PacketDescriptor.INT_COUNT:
+          skip(readInt() * size);
+          break;
+        case PacketDescriptor.SHORT_COUNT:
+          skip(readShort() * size);
+          break;
+        case PacketDescriptor.ITEM_COUNT:
+          short count = readShort();
+          for (int i = 0; i < count; ++i) {
+            skipItem();
+          }
+          break;
+      }
+    }
+  }
+
+  private void skipItem() throws IOException, Incomplete {
+    if (readShort() != -1) {
+      skip(3);
+    }
+  }
+
+  private void skipUTF16() throws IOException, Incomplete {
+    skip(readShort() * 2);
+  }
+
+  private void skipUnknownBlob() throws IOException, Incomplete {
+    byte unknown = readByte();
+    while (unknown != 0x7f) {
+      int type = (unknown & 0xE0) >> 5;
+
+      switch (type) {
+        case 0:
+          skip(1);
+          break;
+        case 1:
+          skip(2);
+          break;
+        case 2:
+        case 3:
+          skip(4);
+          break;
+        case 4:
+          skipUTF16();
+          break;
+        case 5:
+          skip(5);
+      }
+
+      unknown = readByte();
+    }
+  }
+
+  private void skip(int bytes) throws IOException, Incomplete {
+    if (bytes < 0) {
+      throw new IOException("Negative field length in packet");
+    }
+    if (limit - position < bytes) {
+      throw Incomplete.INSTANCE;
+    }
+    position += bytes;
+  }
+
+  private byte readByte() throws Incomplete {
+    if (position >= limit) {
+      throw Incomplete.INSTANCE;
+    }
+    return buffer.get(position++);
+  }
+
+  private short readShort() throws Incomplete {
+    if (limit - position < 2) {
+      throw Incomplete.INSTANCE;
+    }
+    short value = buffer.getShort(position);
+    position += 2;
+    return value;
+  }
+
+  private int readInt() throws Incomplete {
+    if (limit - position < 4) {
+      throw Incomplete.INSTANCE;
+    }
+    int value = buffer.getInt(position);
+    position += 4;
+    return value;
+  }
+
+  private static final class Incomplete extends Exception {
+    private static final long serialVersionUID = 1L;
+    private static final Incomplete INSTANCE = new Incomplete();
+
+    private Incomplete() {
+      super(null, null, false, false);
+    }
+  }
+}
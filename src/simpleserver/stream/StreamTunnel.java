@@ -22,34 +22,41 @@ package simpleserver.stream;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.IllegalFormatException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import simpleserver.Coordinate;
-import simpleserver.Group;
 import simpleserver.Player;
 import simpleserver.Server;
 import simpleserver.command.LocalSayCommand;
 import simpleserver.command.PlayerListCommand;
 import simpleserver.config.ChestList.Chest;
+import simpleserver.options.OptionsSnapshot;
+import simpleserver.thread.ThreadLauncher;
 
 public class StreamTunnel {
   private static final boolean EXPENSIVE_DEBUG_LOGGING = Boolean.getBoolean("EXPENSIVE_DEBUG_LOGGING");
   private static final int IDLE_TIME = 30000;
   private static final int BUFFER_SIZE = 1024;
+  private static final int BULK_BUFFER_SIZE = 32 * 1024;
+  private static final int FLUSH_THRESHOLD = 8 * 1024;
+  private static final long FLUSH_DEADLINE = 5000000L;
   private static final byte BLOCK_DESTROYED_STATUS = 2;
-  private static final Pattern MESSAGE_PATTERN = Pattern.compile("^<([^>]+)> (.*)$");
-  private static final Pattern COLOR_PATTERN = Pattern.compile("\u00a7[0-9a-f]");
   private static final int MAXIMUM_MESSAGE_SIZE = 60;
 
   private final boolean isServerTunnel;
@@ -57,16 +64,38 @@ public class StreamTunnel {
   private final Player player;
   private final Server server;
   private final byte[] buffer;
-  private final Tunneler tunneler;
+  private byte[] bulkBuffer;
+  private byte[] stringBytes = new byte[128];
+  private char[] chars = new char[64];
+  private final Thread tunneler;
+  private volatile Thread messageWriter;
+  private volatile boolean messagesPending;
+  private final FrameInputStream frameIn;
+  private final FrameOutputStream frameOut;
 
   private DataInput in;
   private DataOutput out;
+  private InputStream input;
+  private CountingOutputStream output;
   private StreamDumper inputDumper;
   private StreamDumper outputDumper;
+  private volatile TunnelSelector.Connection connection;
 
   private int motionCounter = 0;
   private boolean inGame = false;
 
+  private final long created = System.currentTimeMillis();
+  private volatile long packets;
+  private volatile long flushes;
+  private boolean flushNow;
+  private volatile long flushedBytes;
+  private long firstUnflushed;
+
+  // Guards out in threaded mode. The Tunneler holds it only at packet
+  // boundaries; while midPacket is set it writes the packet alone.
+  private final ReentrantLock outLock = new ReentrantLock();
+  private boolean midPacket;
+  private volatile boolean loggedIn = false;
   private volatile long lastRead;
   private volatile boolean run = true;
 
@@ -82,9 +111,14 @@ public class StreamTunnel {
 
     this.player = player;
     server = player.getServer();
+    frameIn = null;
+    frameOut = null;
 
-    DataInputStream dIn = new DataInputStream(new BufferedInputStream(in));
-    DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(out));
+    output = new CountingOutputStream(new BufferedOutputStream(out,
+                                                               FLUSH_THRESHOLD));
+    input = new BufferedInputStream(new FlushingInputStream(in));
+    DataInputStream dIn = new DataInputStream(input);
+    DataOutputStream dOut = new DataOutputStream(output);
     if (EXPENSIVE_DEBUG_LOGGING) {
       try {
         OutputStream dump = new FileOutputStream(streamType + "Input.debug");
@@ -115,17 +149,69 @@ public class StreamTunnel {
 
     buffer = new byte[BUFFER_SIZE];
 
-    tunneler = new Tunneler();
-    tunneler.start();
+    tunneler = ThreadLauncher.start(streamType, new Tunneler());
+    if (isServerTunnel) {
+      messageWriter = ThreadLauncher.start(streamType + "Messages",
+                                           new MessageWriter());
+    }
+
+    lastRead = System.currentTimeMillis();
+    listenForMessages();
+  }
+
+  /**
+   * Creates a tunnel without its own thread. Complete packets are handed to
+   * it by a {@link TunnelSelector} through {@link #handleFrame}.
+   */
+  public StreamTunnel(boolean isServerTunnel, Player player) {
+    this.isServerTunnel = isServerTunnel;
+    if (isServerTunnel) {
+      streamType = "ServerStream";
+    }
+    else {
+      streamType = "PlayerStream";
+    }
+
+    this.player = player;
+    server = player.getServer();
+
+    frameIn = new FrameInputStream();
+    frameOut = new FrameOutputStream();
+    in = new DataInputStream(frameIn);
+    out = new DataOutputStream(frameOut);
+
+    buffer = new byte[BUFFER_SIZE];
+    tunneler = null;
 
     lastRead = System.currentTimeMillis();
+    listenForMessages();
+  }
+
+  private void listenForMessages() {
+    if (isServerTunnel) {
+      player.getOutbox().setListener(new Runnable() {
+        public void run() {
+          injectMessages();
+        }
+      });
+    }
   }
 
   public void stop() {
     run = false;
+    wakeMessageWriter();
+
+    TunnelSelector.Connection connection = this.connection;
+    if (connection != null) {
+      connection.close();
+    }
   }
 
   public boolean isAlive() {
+    if (tunneler == null) {
+      TunnelSelector.Connection connection = this.connection;
+      return connection != null && connection.isOpen();
+    }
     return tunneler.isAlive();
   }
 
@@ -134,15 +220,123 @@ public class StreamTunnel {
         || player.isRobot();
   }
 
+  /**
+   * Flush coalescing counters: how often the tunnel flushed to its socket
+   * and how many packets went out per flush.
+   */
+  public String flushReport() {
+    long packets = this.packets;
+    long flushes = this.flushes;
+    long seconds = Math.max(1, (System.currentTimeMillis() - created) / 1000);
+    String perFlush = (flushes == 0) ? "-"
+                                    : String.format("%.2f", (double) packets
+                                        / flushes);
+    return streamType + ": " + String.format("%.2f", (double) flushes
+        / seconds) + " flushes/s, " + perFlush + " packets/flush";
+  }
+
+  void attach(TunnelSelector.Connection connection) {
+    this.connection = connection;
+  }
+
+  String getStreamType() {
+    return streamType;
+  }
+
+  Player getPlayer() {
+    return player;
+  }
+
+  boolean isServerTunnel() {
+    return isServerTunnel;
+  }
+
+  void handleFrame(byte[] data, int offset, int length) throws IOException {
+    lastRead = System.currentTimeMillis();
+    packets++;
+
+    PacketDescriptor descriptor = PacketDescriptor.forId(data[offset]);
+    if (descriptor != null && descriptor.isForwarded(isServerTunnel)) {
+      frameOut.write(data, offset, length);
+    }
+    else {
+      frameIn.reset(data, offset, length);
+      handlePacket();
+    }
+    if (frameIn.available() > 0) {
+      throw new IOException("Packet framing mismatch in " + streamType
+          + " for player " + player.getName());
+    }
+
+    if (isServerTunnel) {
+      drainMessages();
+    }
+  }
+
+  /**
+   * Sends queued chat lines between two backend packets. Called by the
+   * selector worker when the player's outbox wakes it up.
+   */
+  void drainMessages() throws IOException {
+    String message;
+    while ((message = player.getMessage()) != null) {
+      sendMessage(message);
+    }
+  }
+
+  void forward(ByteBuffer source, int length) {
+    lastRead = System.currentTimeMillis();
+    packets++;
+    frameOut.write(source, length);
+  }
+
+  void finish() throws IOException {
+    if (player.isKicked()) {
+      kick(player.getKickMsg());
+    }
+  }
+
+  boolean hasPendingOutput() {
+    return frameOut.size() > 0;
+  }
+
+  int pendingOutput() {
+    return frameOut.size();
+  }
+
+  int writePending(WritableByteChannel channel) throws IOException {
+    int written = frameOut.writeTo(channel);
+    if (written > 0) {
+      flushes++;
+    }
+    return written;
+  }
+
   private void handlePacket() throws IOException {
-    Byte packetId = in.readByte();
+    handlePacket(in.readByte());
+  }
+
+  private void handlePacket(byte packetId) throws IOException {
+    if (packetId == 0x00 || packetId == (byte) 0xff) {
+      flushNow = true;
+    }
+    PacketDescriptor descriptor = PacketDescriptor.forId(packetId);
+    if (descriptor != null && descriptor.isForwarded(isServerTunnel)) {
+      if (descriptor.isFixed()) {
+        copyPacket(packetId, descriptor.length());
+      }
+      else {
+        write(packetId);
+        copyLayout(descriptor.layout());
+      }
+      packetFinished();
+      return;
+    }
+
     int x;
     byte y;
     int z;
     switch (packetId) {
-      case 0x00: // Keep Alive
-        write(packetId);
-        break;
       case 0x01: // Login Request/Response
         write(packetId);
         if (isServerTunnel) {
@@ -152,56 +346,36 @@ public class StreamTunnel {
         else {
           write(in.readInt());
         }
-        write(readUTF16());
+        copyUTF16();
         write(in.readLong());
         write(in.readByte());
+        if (isServerTunnel) {
+          loggedIn = true;
+        }
         break;
       case 0x02: // Handshake
         String name = readUTF16();
         if (isServerTunnel || player.setName(name)) {
-          tunneler.setName(streamType + "-" + player.getName());
+          if (tunneler != null) {
+            tunneler.setName(streamType + "-" + player.getName());
+          }
           write(packetId);
           write(name);
         }
         break;
       case 0x03: // Chat Message
-        String message = readUTF16();
-        if (isServerTunnel && server.options.getBoolean("useMsgFormats")) {
-          
-          Matcher colorMatcher = COLOR_PATTERN.matcher(message);
-          String cleanMessage = colorMatcher.replaceAll("");
-          
-          
-          
-          Matcher messageMatcher = MESSAGE_PATTERN.matcher(cleanMessage);
-          if (messageMatcher.find()) {
-            Player friend = server.findPlayerExact(messageMatcher.group(1));
-
-            if (friend != null) {
-              String color = "f";
-              String title = "";
-              String format = server.options.get("msgFormat");
-              Group group = friend.getGroup();
-
-              if (group != null) {
-                color = group.getColor();
-                if (group.showTitle()) {
-                  title = group.getName();
-                  format = server.options.get("msgTitleFormat");
-                }
-              }
-
-              try {
-                message = String.format(format, friend.getName(), title, color)
-                    + messageMatcher.group(2);
-              }
-              catch (IllegalFormatException e) {
-                System.out.println("[SimpleServer] There is an error in your msgFormat/msgTitleFormat settings!");
-              }
-            }
-          }
+        OptionsSnapshot options = server.options.snapshot();
+        if (isServerTunnel && options.useMsgFormats) {
+          int length = readRawUTF16();
+          write(packetId);
+          byte[] formatted = server.chatFormatter.format(stringBytes, length,
+                                                         options);
+          out.write(formatted, 0, formatted.length);
+          break;
         }
 
+        String message = readUTF16();
+
         if (!isServerTunnel) {
           
           if (player.isMuted() && !message.startsWith("/")
@@ -223,21 +397,6 @@ public class StreamTunnel {
         write(packetId);
         write(message);
         break;
-      case 0x04: // Time Update
-        write(packetId);
-        copyNBytes(8);
-        break;
-      case 0x05: // Player Inventory
-        write(packetId);
-        write(in.readInt());
-        write(in.readShort());
-        write(in.readShort());
-        write(in.readShort());
-        break;
-      case 0x06: // Spawn Position
-        write(packetId);
-        copyNBytes(12);
-        break;
       case 0x07: // Use Entity?
         int user = in.readInt();
         int target = in.readInt();
@@ -253,20 +412,13 @@ public class StreamTunnel {
         write(target);
         write(in.readBoolean());
         break;
-      case 0x08: // Update Health
-        write(packetId);
-        copyNBytes(2);
-        break;
-      case 0x09: // Respawn
-        write(packetId);
-        break;
       case 0x0a: // Player
         write(packetId);
         copyNBytes(1);
         if (!inGame && !isServerTunnel) {
           player.sendMOTD();
             
-          if(server.options.getBoolean("showListOnConnect")){
+          if (server.options.snapshot().showListOnConnect) {
             //display player list if enabled in config
             player.execute(PlayerListCommand.class);
           }
@@ -278,10 +430,6 @@ public class StreamTunnel {
         write(packetId);
         copyPlayerLocation();
         break;
-      case 0x0c: // Player Look
-        write(packetId);
-        copyNBytes(9);
-        break;
       case 0x0d: // Player Position & Look
         write(packetId);
         copyPlayerLocation();
@@ -424,29 +572,6 @@ public class StreamTunnel {
 
      
         
-        break;
-      case 0x10: // Holding Change
-        write(packetId);
-        copyNBytes(2);
-        break;
-      case 0x11: // Use Bed
-        write(packetId);
-        copyNBytes(14);
-        break;
-      case 0x12: // Animation
-        write(packetId);
-        copyNBytes(5);
-        break;
-      case 0x13: // ???
-        write(packetId);
-        write(in.readInt());
-        write(in.readByte());
-        break;
-      case 0x14: // Named Entity Spawn
-        write(packetId);
-        write(in.readInt());
-        write(readUTF16());
-        copyNBytes(16);
         break;
       case 0x15: // Pickup spawn
         if (player.getGroupId() < 0) {
@@ -456,99 +581,6 @@ public class StreamTunnel {
         write(packetId);
         copyNBytes(24);
         break;
-      case 0x16: // Collect Item
-        write(packetId);
-        copyNBytes(8);
-        break;
-      case 0x17: // Add Object/Vehicle
-        write(packetId);
-        copyNBytes(17);
-        break;
-      case 0x18: // Mob Spawn
-        write(packetId);
-        write(in.readInt());
-        write(in.readByte());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readByte());
-        write(in.readByte());
-
-        copyUnknownBlob();
-        break;
-      case 0x19: // Painting
-        write(packetId);
-        write(in.readInt());
-        write(readUTF16());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        write(in.readInt());
-        break;
-      case 0x1b: // ???
-        write(packetId);
-        copyNBytes(18);
-        break;
-      case 0x1c: // Entity Velocity?
-        write(packetId);
-        copyNBytes(10);
-        break;
-      case 0x1d: // Destroy Entity
-        write(packetId);
-        copyNBytes(4);
-        break;
-      case 0x1e: // Entity
-        write(packetId);
-        copyNBytes(4);
-        break;
-      case 0x1f: // Entity Relative Move
-        write(packetId);
-        copyNBytes(7);
-        break;
-      case 0x20: // Entity Look
-        write(packetId);
-        copyNBytes(6);
-        break;
-      case 0x21: // Entity Look and Relative Move
-        write(packetId);
-        copyNBytes(9);
-        break;
-      case 0x22: // Entity Teleport
-        write(packetId);
-        copyNBytes(18);
-        break;
-      case 0x26: // Entity status?
-        write(packetId);
-        copyNBytes(5);
-        break;
-      case 0x27: // Attach Entity?
-        write(packetId);
-        copyNBytes(8);
-        break;
-      case 0x28: // Entity Metadata
-        write(packetId);
-        write(in.readInt());
-
-        copyUnknownBlob();
-        break;
-      case 0x32: // Pre-Chunk
-        write(packetId);
-        copyNBytes(9);
-        break;
-      case 0x33: // Map Chunk
-        write(packetId);
-        copyNBytes(13);
-        int chunkSize = in.readInt();
-        write(chunkSize);
-        copyNBytes(chunkSize);
-        break;
-      case 0x34: // Multi Block Change
-        write(packetId);
-        copyNBytes(8);
-        short arraySize = in.readShort();
-        write(arraySize);
-        copyNBytes(arraySize * 4);
-        break;
       case 0x35: // Block Change
         write(packetId);
         x = in.readInt();
@@ -568,25 +600,6 @@ public class StreamTunnel {
         write(blockType);
         write(metadata);
         
-        break;
-      case 0x36: // ???
-        write(packetId);
-        copyNBytes(12);
-        break;
-      case 0x3c: // Explosion
-        write(packetId);
-        copyNBytes(28);
-        int recordCount = in.readInt();
-        write(recordCount);
-        copyNBytes(recordCount * 3);
-        break;
-      case 0x46: // Invalid Bed
-        write(packetId);
-        copyNBytes(1);
-        break;
-      case 0x47: // Weather
-        write(packetId);
-        copyNBytes(17);
         break;
       case 0x64:
         byte id = in.readByte();
@@ -623,10 +636,6 @@ public class StreamTunnel {
         write8(typeString);
         write(in.readByte());
         break;
-      case 0x65:
-        write(packetId);
-        write(in.readByte());
-        break;
       case 0x66: // Inventory Item Move
         byte typeFrom = in.readByte();
         short slotFrom = in.readShort();
@@ -705,32 +714,6 @@ public class StreamTunnel {
           }
         }
         break;
-      case 0x69:
-        write(packetId);
-        write(in.readByte());
-        write(in.readShort());
-        write(in.readShort());
-        break;
-      case 0x6a:
-        write(packetId);
-        write(in.readByte());
-        write(in.readShort());
-        write(in.readByte());
-        break;
-      case (byte) 0x82: // Update Sign
-        write(packetId);
-        write(in.readInt());
-        write(in.readShort());
-        write(in.readInt());
-        write(readUTF16());
-        write(readUTF16());
-        write(readUTF16());
-        write(readUTF16());
-        break;
-      case (byte)0xc8:  //weather
-        write(packetId);
-        copyNBytes(5);
-        break;
       case (byte) 0xff: // Disconnect/Kick
         write(packetId);
         String reason = readUTF16();
@@ -741,7 +724,7 @@ public class StreamTunnel {
         player.close();
         break;
       default:
-        if (EXPENSIVE_DEBUG_LOGGING) {
+        if (inputDumper != null) {
           while (true) {
             skipNBytes(1);
             flushAll();
@@ -757,16 +740,57 @@ public class StreamTunnel {
   }
   
   private String readUTF16() throws IOException {
+    int length = readRawUTF16() / 2;
+    if (length == 0) {
+      return "";
+    }
+
+    byte[] bytes = stringBytes;
+    if (chars.length < length) {
+      chars = new char[Math.max(length, chars.length * 2)];
+    }
+    for (int c = 0; c < length; ++c) {
+      chars[c] = (char) (((bytes[c * 2] & 0xff) << 8) | (bytes[c * 2 + 1] & 0xff));
+    }
+    return new String(chars, 0, length);
+  }
+
+  /**
+   * Reads the characters of a string into stringBytes without decoding them
+   * and returns their length in bytes.
+   */
+  private int readRawUTF16() throws IOException {
+    int length = in.readShort();
+    if (length < 0) {
+      throw new IOException("Negative string length in " + streamType
+          + " packet for player " + player.getName());
+    }
+
+    byte[] bytes = stringBuffer(length * 2);
+    in.readFully(bytes, 0, length * 2);
+    return length * 2;
+  }
+
+  private void copyUTF16() throws IOException {
     short length = in.readShort();
-    byte[] bytes = new byte[length*2+2];
-    for(short i = 0; i < length*2; i++) {
-      bytes[i+2] = in.readByte();
+    if (length < 0) {
+      throw new IOException("Negative string length in " + streamType
+          + " packet for player " + player.getName());
+    }
+    write(length);
+    if (length > 0) {
+      copyNBytes(length * 2);
     }
-    bytes[0] = (byte)0xfffffffe;
-    bytes[1] = (byte)0xffffffff;
-    return new String(bytes, "UTF-16");
   }
 
+  private byte[] stringBuffer(int size) {
+    if (stringBytes.length < size) {
+      stringBytes = new byte[Math.max(size, stringBytes.length * 2)];
+    }
+    return stringBytes;
+  }
+
+
 
   private void lockChest(Coordinate coords) {
     lockChest(coords.x, coords.y, coords.z);
@@ -779,8 +803,7 @@ public class StreamTunnel {
           server.chests.giveLock(adjacentChest.owner(), x, y, z, false, adjacentChest.name());
       } else {
         if(adjacentChest != null) {
-          adjacentChest.lock(player);
-          adjacentChest.rename(player.nextChestName());
+          server.chests.lock(adjacentChest, player, player.nextChestName());
         }
         server.chests.giveLock(player, x, y, z, false, player.nextChestName());
       }
@@ -833,7 +856,7 @@ public class StreamTunnel {
           write(in.readFloat());
           break;
         case 4:
-          write(readUTF16());
+          copyUTF16();
           break;
         case 5:
           write(in.readShort());
@@ -871,18 +894,18 @@ public class StreamTunnel {
   }
 
   private void write(String s) throws IOException {
-    byte[] bytes = s.getBytes("UTF-16");
-    if(s.length() == 0) {
-      write((byte)0x00);
-      write((byte)0x00);
-      return;
-    }
-    bytes[0] = (byte)((s.length()>>8)&0xFF);
-    bytes[1] = (byte) ((s.length()&0xFF));
-    for(int i = 0; i < bytes.length; i++) {
-      write(bytes[i]);
+    int length = s.length();
+    byte[] bytes = stringBuffer(length * 2 + 2);
+    bytes[0] = (byte) (length >> 8);
+    bytes[1] = (byte) length;
+    for (int c = 0; c < length; ++c) {
+      char character = s.charAt(c);
+      bytes[c * 2 + 2] = (byte) (character >> 8);
+      bytes[c * 2 + 3] = (byte) character;
     }
+    out.write(bytes, 0, length * 2 + 2);
   }
+
   
   private void write8(String s) throws IOException {
     out.writeUTF(s);
@@ -892,6 +915,62 @@ public class StreamTunnel {
     out.writeBoolean(b);
   }
 
+  private void copyLayout(int[] layout) throws IOException {
+    for (int c = 0; c < layout.length; c += 2) {
+      int size = layout[c + 1];
+      switch (layout[c]) {
+        case PacketDescriptor.BYTES:
+          copyNBytes(size);
+          break;
+        case PacketDescriptor.STRING16:
+          copyUTF16();
+          break;
+        case PacketDescriptor.STRING8:
+          short length = in.readShort();
+          write(length);
+          copyNBytes(length & 0xffff);
+          break;
+        case PacketDescriptor.METADATA:
+          copyUnknownBlob();
+          break;
+        case PacketDescriptor.ITEM:
+          copyItem();
+          break;
+        case PacketDescriptor.INT_COUNT:
+          int count = in.readInt();
+          write(count);
+          copyBulk(count * size);
+          break;
+        case PacketDescriptor.SHORT_COUNT:
+          short shortCount = in.readShort();
+          write(shortCount);
+          copyBulk(shortCount * size);
+          break;
+        case PacketDescriptor.ITEM_COUNT:
+          short items = in.readShort();
+          write(items);
+          for (int i = 0; i < items; ++i) {
+            copyItem();
+          }
+          break;
+      }
+    }
+  }
+
+  private void copyItem() throws IOException {
+    short item = in.readShort();
+    write(item);
+    if (item != -1) {
+      copyNBytes(3);
+    }
+  }
+
+  private void copyPacket(byte packetId, int bytes) throws IOException {
+    buffer[0] = packetId;
+    in.readFully(buffer, 1, bytes);
+    out.write(buffer, 0, bytes + 1);
+  }
+
   private void skipNBytes(int bytes) throws IOException {
     int overflow = bytes / buffer.length;
     for (int c = 0; c < overflow; ++c) {
@@ -910,6 +989,24 @@ public class StreamTunnel {
     out.write(buffer, 0, bytes % buffer.length);
   }
 
+  private void copyBulk(int bytes) throws IOException {
+    if (bytes < BULK_BUFFER_SIZE / 8) {
+      copyNBytes(bytes);
+      return;
+    }
+
+    if (bulkBuffer == null) {
+      bulkBuffer = new byte[BULK_BUFFER_SIZE];
+    }
+    TrafficStatistics.addBulkBytes(bytes);
+    while (bytes > 0) {
+      int chunk = Math.min(bytes, bulkBuffer.length);
+      in.readFully(bulkBuffer, 0, chunk);
+      out.write(bulkBuffer, 0, chunk);
+      bytes -= chunk;
+    }
+  }
+
   private void kick(String reason) throws IOException {
     write((byte) 0xff);
     write(reason);
@@ -938,31 +1035,181 @@ public class StreamTunnel {
       System.out.println("[SimpleServer] Invalid message size: " + message);
       return;
     }
-    write(0x03);
+    write((byte) 0x03);
     write(message);
     packetFinished();
   }
   
 
   private void packetFinished() throws IOException {
-    if (EXPENSIVE_DEBUG_LOGGING) {
+    if (inputDumper != null) {
       inputDumper.packetFinished();
       outputDumper.packetFinished();
     }
   }
 
+  /**
+   * Sends queued chat lines as soon as they are added, instead of waiting for
+   * the next backend packet. The lines are written by the player's own
+   * selector worker or message writer, never on the thread that added them,
+   * so a stalled client cannot block whoever is messaging it.
+   */
+  private void injectMessages() {
+    if (!loggedIn) {
+      return;
+    }
+
+    if (tunneler == null) {
+      TunnelSelector.Connection connection = this.connection;
+      if (connection != null) {
+        connection.injectMessages();
+      }
+      return;
+    }
+
+    wakeMessageWriter();
+  }
+
+  private void wakeMessageWriter() {
+    messagesPending = true;
+    LockSupport.unpark(messageWriter);
+  }
+
+  /**
+   * Flushes only when nothing more is buffered on the input side, or when
+   * enough output or time has piled up, so bursts of small packets leave
+   * in a few large writes. Keep-alives and kicks are flushed at once.
+   */
+  private void flushIfIdle() throws IOException {
+    packets++;
+    long now = System.nanoTime();
+    if (firstUnflushed == 0) {
+      firstUnflushed = now;
+    }
+
+    if (flushNow || input.available() == 0
+        || output.count - flushedBytes >= FLUSH_THRESHOLD
+        || now - firstUnflushed >= FLUSH_DEADLINE) {
+      flushAll();
+    }
+  }
+
   private void flushAll() throws IOException {
+    flushNow = false;
+    firstUnflushed = 0;
+    if (output != null) {
+      flushedBytes = output.count;
+    }
+    flushes++;
     try {
       ((OutputStream) out).flush();
     }
     finally {
-      if (EXPENSIVE_DEBUG_LOGGING) {
+      if (inputDumper != null) {
         inputDumper.flush();
       }
     }
   }
 
-  private final class Tunneler extends Thread {
+  /**
+   * Flushes pending output before a read from the socket that may block, so
+   * a slow or stalled sender never holds back what was already copied.
+   */
+  private final class FlushingInputStream extends FilterInputStream {
+    private FlushingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      flushBeforeBlocking();
+      return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      flushBeforeBlocking();
+      return super.read(b, off, len);
+    }
+
+    private void flushBeforeBlocking() throws IOException {
+      if (output.count == flushedBytes || super.available() > 0) {
+        return;
+      }
+
+      outLock.lock();
+      try {
+        flushAll();
+      }
+      finally {
+        outLock.unlock();
+      }
+    }
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private volatile long count;
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+  private static final class FrameInputStream extends ByteArrayInputStream {
+    private FrameInputStream() {
+      super(new byte[0]);
+    }
+
+    private void reset(byte[] data, int offset, int length) {
+      buf = data;
+      pos = offset;
+      count = offset + length;
+      mark = offset;
+    }
+  }
+
+  private static final class FrameOutputStream extends ByteArrayOutputStream {
+    private FrameOutputStream() {
+      super(BUFFER_SIZE);
+    }
+
+    private void write(ByteBuffer source, int length) {
+      if (count + length > buf.length) {
+        byte[] larger = new byte[Math.max(count + length, buf.length * 2)];
+        System.arraycopy(buf, 0, larger, 0, count);
+        buf = larger;
+      }
+      source.get(buf, count, length);
+      count += length;
+    }
+
+    private int writeTo(WritableByteChannel channel) throws IOException {
+      if (count == 0) {
+        return 0;
+      }
+
+      int written = channel.write(ByteBuffer.wrap(buf, 0, count));
+      if (written > 0) {
+        System.arraycopy(buf, written, buf, 0, count - written);
+        count -= written;
+      }
+      return written;
+    }
+  }
+
+  private final class Tunneler implements Runnable {
     @Override
     public void run() {
       try {
@@ -970,15 +1217,25 @@ public class StreamTunnel {
           lastRead = System.currentTimeMillis();
 
           try {
-            handlePacket();
+            byte packetId = in.readByte();
+            outLock.lock();
+            midPacket = true;
+            outLock.unlock();
+
+            handlePacket(packetId);
 
-            if (isServerTunnel) {
-              while (player.hasMessages()) {
-                sendMessage(player.getMessage());
+            outLock.lock();
+            try {
+              midPacket = false;
+              if (isServerTunnel) {
+                drainMessages();
               }
-            }
 
-            flushAll();
+              flushIfIdle();
+            }
+            finally {
+              outLock.unlock();
+            }
           }
           catch (IOException e) {
             if (run && !player.isRobot()) {
@@ -990,6 +1247,7 @@ public class StreamTunnel {
           }
         }
 
+        outLock.lock();
         try {
           if (player.isKicked()) {
             kick(player.getKickMsg());
@@ -998,8 +1256,13 @@ public class StreamTunnel {
         }
         catch (IOException e) {
         }
+        finally {
+          outLock.unlock();
+        }
       }
       finally {
+        run = false;
+        wakeMessageWriter();
         if (EXPENSIVE_DEBUG_LOGGING) {
           inputDumper.cleanup();
           outputDumper.cleanup();
@@ -1007,4 +1270,39 @@ public class StreamTunnel {
       }
     }
   }
+
+  /**
+   * Writes chat lines to the client between backend packets in threaded
+   * mode, whenever the player's outbox wakes it up. Lines that arrive while
+   * the Tunneler is in the middle of a packet are left for the Tunneler,
+   * which sends them as soon as the packet is done.
+   */
+  private final class MessageWriter implements Runnable {
+    @Override
+    public void run() {
+      while (true) {
+        while (!messagesPending && run) {
+          LockSupport.park(this);
+        }
+        messagesPending = false;
+        if (!run) {
+          return;
+        }
+
+        outLock.lock();
+        try {
+          if (!midPacket) {
+            drainMessages();
+            flushAll();
+          }
+        }
+        catch (IOException e) {
+          return;
+        }
+        finally {
+          outLock.unlock();
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide counters for tunnel traffic, reported over RCON.
+ */
+public final class TrafficStatistics {
+  private static final AtomicLong zeroCopyBytes = new AtomicLong();
+  private static final AtomicLong bulkBytes = new AtomicLong();
+
+  private TrafficStatistics() {
+  }
+
+  static void addZeroCopyBytes(int bytes) {
+    zeroCopyBytes.addAndGet(bytes);
+  }
+
+  static void addBulkBytes(int bytes) {
+    bulkBytes.addAndGet(bytes);
+  }
+
+  /**
+   * Payload bytes that went from the backend channel to the client channel
+   * through a direct buffer, without a heap copy (selector mode).
+   */
+  public static long zeroCopyBytes() {
+    return zeroCopyBytes.get();
+  }
+
+  /**
+   * Payload bytes of bulk packets forwarded through the tunnel thread's
+   * bulk buffer (threaded mode).
+   */
+  public static long bulkBytes() {
+    return bulkBytes.get();
+  }
+
+  public static String report() {
+    return "Zero-copy payload bytes: " + zeroCopyBytes.get()
+        + "\nBuffered bulk payload bytes: " + bulkBytes.get() + "\n";
+  }
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpleserver.Player;
+
+/**
+ * Event-driven replacement for the two Tunneler threads and the Watchdog of
+ * every player. A small, fixed number of workers each own a Selector and
+ * multiplex the client and backend channels of many players.
+ */
+public class TunnelSelector {
+  private static final int IDLE_CHECK_INTERVAL = 2000;
+  private static final int INITIAL_BUFFER_SIZE = 8192;
+  private static final int MAXIMUM_PACKET_SIZE = 4 * 1024 * 1024;
+  private static final int HIGH_WATER_MARK = 256 * 1024;
+  private static final int CLOSE_WRITE_ATTEMPTS = 5;
+  private static final int SPLICE_THRESHOLD = 4096;
+
+  private final Worker[] workers;
+  private final AtomicInteger nextWorker = new AtomicInteger();
+
+  public TunnelSelector(int threads) throws IOException {
+    workers = new Worker[Math.max(1, threads)];
+    for (int c = 0; c < workers.length; ++c) {
+      workers[c] = new Worker();
+      workers[c].setName("TunnelSelector-" + c);
+      workers[c].start();
+    }
+  }
+
+  public Connection register(Player player, SocketChannel client,
+                             SocketChannel backend, StreamTunnel serverToClient,
+                             StreamTunnel clientToServer, Runnable onClose)
+      throws IOException {
+    client.configureBlocking(false);
+    backend.configureBlocking(false);
+
+    int index = (nextWorker.getAndIncrement() & Integer.MAX_VALUE)
+        % workers.length;
+    Worker worker = workers[index];
+    Connection connection = new Connection(worker, player, client, backend,
+                                           serverToClient, clientToServer,
+                                           onClose);
+    serverToClient.attach(connection);
+    clientToServer.attach(connection);
+    worker.submit(connection.registration());
+    return connection;
+  }
+
+  public int connections() {
+    int count = 0;
+    for (Worker worker : workers) {
+      count += worker.connections.size();
+    }
+    return count;
+  }
+
+  public void stop() {
+    for (Worker worker : workers) {
+      worker.shutdown();
+    }
+  }
+
+  public final class Connection {
+    private final Worker worker;
+    private final Player player;
+    private final SocketChannel client;
+    private final SocketChannel backend;
+    private final Direction serverToClient;
+    private final Direction clientToServer;
+    private final Runnable onClose;
+
+    private SelectionKey clientKey;
+    private SelectionKey backendKey;
+    private volatile boolean open = true;
+    private volatile boolean closing = false;
+
+    private Connection(Worker worker, Player player, SocketChannel client,
+                       SocketChannel backend, StreamTunnel serverToClient,
+                       StreamTunnel clientToServer, Runnable onClose) {
+      this.worker = worker;
+      this.player = player;
+      this.client = client;
+      this.backend = backend;
+      this.onClose = onClose;
+      this.serverToClient = new Direction(this, serverToClient, backend, client);
+      this.clientToServer = new Direction(this, clientToServer, client, backend);
+    }
+
+    public boolean isOpen() {
+      return open;
+    }
+
+    public void close() {
+      if (!closing) {
+        closing = true;
+        worker.submit(new Runnable() {
+          public void run() {
+            shutdown();
+          }
+        });
+      }
+    }
+
+    /**
+     * Asks the worker to send the player's queued chat lines now.
+     */
+    public void injectMessages() {
+      if (!closing) {
+        worker.submit(new Runnable() {
+          public void run() {
+            if (!open) {
+              return;
+            }
+            try {
+              serverToClient.injectMessages();
+              updateInterest();
+            }
+            catch (CancelledKeyException e) {
+              shutdown();
+            }
+            catch (IOException e) {
+              shutdown();
+            }
+          }
+        });
+      }
+    }
+
+    private Runnable registration() {
+      return new Runnable() {
+        public void run() {
+          try {
+            clientKey = client.register(worker.selector, SelectionKey.OP_READ,
+                                        Connection.this);
+            backendKey = backend.register(worker.selector,
+                                          SelectionKey.OP_READ,
+                                          Connection.this);
+            worker.connections.add(Connection.this);
+          }
+          catch (ClosedChannelException e) {
+            shutdown();
+          }
+        }
+      };
+    }
+
+    private void handle(SelectionKey key) {
+      try {
+        boolean fromClient = key == clientKey;
+        Direction incoming = fromClient ? clientToServer : serverToClient;
+        Direction outgoing = fromClient ? serverToClient : clientToServer;
+
+        if (key.isWritable()) {
+          outgoing.write();
+        }
+        if (key.isValid() && key.isReadable() && !closing) {
+          incoming.read();
+        }
+        updateInterest();
+      }
+      catch (CancelledKeyException e) {
+        shutdown();
+      }
+      catch (IOException e) {
+        if (!closing && !player.isRobot()) {
+          System.out.println("[SimpleServer] " + e);
+          System.out.println("[SimpleServer] "
+              + (key == clientKey ? clientToServer : serverToClient).tunnel.getStreamType()
+              + " error handling traffic for " + player.getIPAddress());
+        }
+        shutdown();
+      }
+    }
+
+    private void updateInterest() {
+      if (!open) {
+        return;
+      }
+      clientKey.interestOps(clientToServer.readInterest()
+          | serverToClient.writeInterest());
+      backendKey.interestOps(serverToClient.readInterest()
+          | clientToServer.writeInterest());
+    }
+
+    private void checkIdle() {
+      if (!closing
+          && (!serverToClient.tunnel.isActive() || !clientToServer.tunnel.isActive())) {
+        System.out.println("[SimpleServer] Disconnecting "
+            + player.getIPAddress() + " due to inactivity.");
+        player.close();
+      }
+    }
+
+    private void shutdown() {
+      if (!open) {
+        return;
+      }
+      open = false;
+      closing = true;
+      worker.connections.remove(this);
+
+      serverToClient.finish();
+      clientToServer.finish();
+
+      if (clientKey != null) {
+        clientKey.cancel();
+      }
+      if (backendKey != null) {
+        backendKey.cancel();
+      }
+      try {
+        client.close();
+      }
+      catch (IOException e) {
+      }
+      try {
+        backend.close();
+      }
+      catch (IOException e) {
+      }
+
+      onClose.run();
+    }
+  }
+
+  private static final class Direction {
+    private final Connection connection;
+    private final StreamTunnel tunnel;
+    private final SocketChannel source;
+    private final SocketChannel target;
+    private final PacketScanner scanner;
+    private ByteBuffer input;
+    private byte[] frame;
+    private int spliceRemaining = 0;
+    private boolean spliceBlocked = false;
+
+    private Direction(Connection connection, StreamTunnel tunnel,
+                      SocketChannel source, SocketChannel target) {
+      this.connection = connection;
+      this.tunnel = tunnel;
+      this.source = source;
+      this.target = target;
+      scanner = new PacketScanner();
+      input = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+      frame = new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    private void read() throws IOException {
+      int read = source.read(input);
+      if (read < 0) {
+        throw new EOFException();
+      }
+
+      pump();
+    }
+
+    /**
+     * Drains queued chat lines unless a spliced payload is half written, in
+     * which case they follow the payload.
+     */
+    private void injectMessages() throws IOException {
+      if (spliceRemaining == 0) {
+        tunnel.drainMessages();
+        if (tunnel.hasPendingOutput()) {
+          tunnel.writePending(target);
+        }
+      }
+    }
+
+    private void write() throws IOException {
+      if (tunnel.hasPendingOutput()) {
+        tunnel.writePending(target);
+      }
+      if (spliceRemaining > 0 || input.position() > 0) {
+        pump();
+      }
+    }
+
+    private void pump() throws IOException {
+      input.flip();
+      try {
+        process();
+      }
+      finally {
+        input.compact();
+      }
+
+      if (!input.hasRemaining() && spliceRemaining == 0) {
+        grow();
+      }
+
+      if (tunnel.isServerTunnel() && tunnel.getPlayer().hasMessages()) {
+        injectMessages();
+      }
+
+      if (tunnel.hasPendingOutput()) {
+        tunnel.writePending(target);
+      }
+    }
+
+    private void process() throws IOException {
+      while (!connection.closing) {
+        if (spliceRemaining > 0) {
+          if (!splice()) {
+            return;
+          }
+          continue;
+        }
+
+        if (!input.hasRemaining()) {
+          return;
+        }
+
+        PacketDescriptor descriptor = PacketDescriptor.forId(input.get(input.position()));
+        if (descriptor != null && descriptor.isBulk()
+            && descriptor.isForwarded(tunnel.isServerTunnel())) {
+          int header = descriptor.bulkHeaderLength();
+          if (input.remaining() < header) {
+            return;
+          }
+          int payload = descriptor.bulkPayloadLength(input, input.position());
+          if (payload < 0) {
+            throw new IOException("Negative field length in packet");
+          }
+          if (payload >= SPLICE_THRESHOLD
+              || input.remaining() < header + payload) {
+            tunnel.forward(input, header);
+            spliceRemaining = payload;
+            continue;
+          }
+        }
+
+        int length = scanner.packetLength(input);
+        if (length == PacketScanner.INCOMPLETE) {
+          return;
+        }
+        if (frame.length < length) {
+          frame = new byte[Math.max(length, frame.length * 2)];
+        }
+        input.get(frame, 0, length);
+        tunnel.handleFrame(frame, 0, length);
+      }
+    }
+
+    /**
+     * Writes the opaque payload of a bulk packet from the direct input buffer
+     * straight to the target channel. Returns false when more input or
+     * a writable target is needed.
+     */
+    private boolean splice() throws IOException {
+      spliceBlocked = false;
+      if (tunnel.hasPendingOutput()) {
+        tunnel.writePending(target);
+        if (tunnel.hasPendingOutput()) {
+          spliceBlocked = true;
+          return false;
+        }
+      }
+
+      int chunk = Math.min(spliceRemaining, input.remaining());
+      if (chunk == 0) {
+        return false;
+      }
+
+      int limit = input.limit();
+      input.limit(input.position() + chunk);
+      int written;
+      try {
+        written = target.write(input);
+      }
+      finally {
+        input.limit(limit);
+      }
+      spliceRemaining -= written;
+      TrafficStatistics.addZeroCopyBytes(written);
+
+      if (written < chunk) {
+        spliceBlocked = true;
+        return false;
+      }
+      return spliceRemaining == 0;
+    }
+
+    private void grow() throws IOException {
+      if (input.capacity() >= MAXIMUM_PACKET_SIZE) {
+        throw new IOException("Packet exceeds " + MAXIMUM_PACKET_SIZE
+            + " bytes in " + tunnel.getStreamType());
+      }
+      ByteBuffer larger = ByteBuffer.allocateDirect(input.capacity() * 2);
+      input.flip();
+      larger.put(input);
+      input = larger;
+    }
+
+    private int readInterest() {
+      if (tunnel.pendingOutput() > HIGH_WATER_MARK || spliceBlocked
+          || !input.hasRemaining()) {
+        return 0;
+      }
+      return SelectionKey.OP_READ;
+    }
+
+    private int writeInterest() {
+      if (tunnel.hasPendingOutput() || spliceBlocked) {
+        return SelectionKey.OP_WRITE;
+      }
+      return 0;
+    }
+
+    private void finish() {
+      try {
+        if (spliceRemaining == 0) {
+          tunnel.finish();
+        }
+        for (int c = 0; c < CLOSE_WRITE_ATTEMPTS && tunnel.hasPendingOutput(); ++c) {
+          if (tunnel.writePending(target) == 0) {
+            Thread.yield();
+          }
+        }
+      }
+      catch (IOException e) {
+      }
+    }
+  }
+
+  private final class Worker extends Thread {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    private volatile boolean run = true;
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    private Worker() throws IOException {
+      selector = Selector.open();
+    }
+
+    private void submit(Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    private void shutdown() {
+      run = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (run) {
+          try {
+            selector.select(IDLE_CHECK_INTERVAL);
+          }
+          catch (IOException e) {
+            System.out.println("[SimpleServer] " + e);
+            System.out.println("[SimpleServer] Tunnel selector failed!");
+            break;
+          }
+
+          Runnable task;
+          while ((task = tasks.poll()) != null) {
+            task.run();
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (key.isValid()) {
+              ((Connection) key.attachment()).handle(key);
+            }
+          }
+
+          long now = System.currentTimeMillis();
+          if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+            lastIdleCheck = now;
+            for (Connection connection : connections.toArray(new Connection[connections.size()])) {
+              connection.checkIdle();
+            }
+          }
+        }
+      }
+      finally {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        for (Connection connection : connections.toArray(new Connection[connections.size()])) {
+          connection.shutdown();
+        }
+        try {
+          selector.close();
+        }
+        catch (IOException e) {
+        }
+      }
+    }
+  }
+}
@@ -20,26 +20,63 @@
  */
 package simpleserver.thread;
 
-import java.util.HashMap;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import simpleserver.Server;
+import simpleserver.options.Options;
 
+/**
+ * Limits how often new connections are accepted from one address and from
+ * the network around it (the /24 of an IPv4 address, the /64 of an IPv6
+ * address), using a token bucket for each. Buckets are kept in lock stripes
+ * so concurrent accepts rarely contend, and idle or least recently used
+ * buckets are dropped so a flood of distinct addresses cannot grow the table
+ * without bound.
+ */
 public class RequestTracker {
-  private static final int MAX_REQUESTS = 30;
-  private static final int CLEAR_SECONDS = 60;
+  private static final int STRIPES = 16;
+  private static final int SWEEP_SECONDS = 60;
+
+  private static final int IPV4_SUBNET = 24;
+  private static final int IPV6_SUBNET = 64;
 
   private final Server server;
-  private final Map<String, Integer> requests;
+  private final Limit addressLimit;
+  private final Limit subnetLimit;
+  private final boolean ban;
+  private final Stripe[] stripes;
   private final Tracker tracker;
 
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong addressRejects = new AtomicLong();
+  private final AtomicLong subnetRejects = new AtomicLong();
+  private final AtomicLong bans = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
   private volatile boolean run = true;
 
   public RequestTracker(Server server) {
     this.server = server;
-    requests = new HashMap<String, Integer>();
+
+    Options options = server.options;
+    addressLimit = new Limit(options.getInt("requestLimit"),
+                             options.getInt("requestsPerMinute"));
+    subnetLimit = new Limit(options.getInt("subnetRequestLimit"),
+                            options.getInt("subnetRequestsPerMinute"));
+    ban = options.getBoolean("requestLimitBan");
+
+    int capacity = Math.max(1, options.getInt("requestTrackerEntries") / STRIPES);
+    stripes = new Stripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(capacity);
+    }
 
     tracker = new Tracker();
+    tracker.setDaemon(true);
     tracker.start();
     tracker.setName("RequestTracker");
   }
@@ -49,17 +86,222 @@ public class RequestTracker {
     tracker.interrupt();
   }
 
-  public synchronized void addRequest(String ipAddress) {
-    Integer count = requests.get(ipAddress);
-    if (count == null) {
-      count = 0;
+  /**
+   * Takes a token for a new connection from address and its subnet. Returns
+   * false if either bucket is empty, in which case the connection should be
+   * closed straight away.
+   */
+  public boolean addRequest(InetAddress address) {
+    long now = System.nanoTime();
+    Key host = Key.host(address);
+    int rejects = stripeFor(host).take(host, addressLimit, now);
+    if (rejects > 0) {
+      addressRejects.incrementAndGet();
+      if (ban && rejects == 1) {
+        String ipAddress = address.getHostAddress();
+        bans.incrementAndGet();
+        server.adminLog("RequestTracker banned " + ipAddress
+            + ":\t Too many requests!");
+        server.banKickIP(ipAddress, "Banned: Too many requests!");
+      }
+      return false;
+    }
+
+    Key subnet = Key.subnet(address);
+    if (stripeFor(subnet).take(subnet, subnetLimit, now) > 0) {
+      subnetRejects.incrementAndGet();
+      return false;
+    }
+
+    accepted.incrementAndGet();
+    return true;
+  }
+
+  public String report() {
+    int hosts = 0;
+    int subnets = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        for (Key key : stripe.buckets.keySet()) {
+          if (key.isSubnet()) {
+            subnets++;
+          }
+          else {
+            hosts++;
+          }
+        }
+      }
+    }
+
+    return "Limits: " + addressLimit + " per address, " + subnetLimit
+        + " per subnet\n" + "Tracked: " + hosts + " addresses, " + subnets
+        + " subnets (" + evictions.get() + " evicted)\n" + "Accepted: "
+        + accepted.get() + "\n" + "Rejected: " + addressRejects.get()
+        + " per address, " + subnetRejects.get() + " per subnet\n"
+        + "Banned: " + bans.get() + "\n";
+  }
+
+  private Stripe stripeFor(Key key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return stripes[hash & (STRIPES - 1)];
+  }
+
+  private void sweep() {
+    long now = System.nanoTime();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        Iterator<Map.Entry<Key, Bucket>> iterator = stripe.buckets.entrySet().iterator();
+        while (iterator.hasNext()) {
+          Map.Entry<Key, Bucket> entry = iterator.next();
+          Limit limit = entry.getKey().isSubnet() ? subnetLimit : addressLimit;
+          if (entry.getValue().isFull(limit, now)) {
+            iterator.remove();
+          }
+        }
+      }
+    }
+  }
+
+  private static final class Limit {
+    private final double capacity;
+    private final double tokensPerNano;
+    private final int perMinute;
+
+    private Limit(int capacity, int perMinute) {
+      this.capacity = Math.max(1, capacity);
+      this.perMinute = Math.max(1, perMinute);
+      tokensPerNano = this.perMinute / 60e9;
+    }
+
+    @Override
+    public String toString() {
+      return (int) capacity + " burst, " + perMinute + "/min";
+    }
+  }
+
+  private static final class Bucket {
+    private double tokens;
+    private long updated;
+    private int rejects;
+
+    private Bucket(Limit limit, long now) {
+      tokens = limit.capacity;
+      updated = now;
+    }
+
+    private void refill(Limit limit, long now) {
+      tokens = Math.min(limit.capacity, tokens + (now - updated)
+          * limit.tokensPerNano);
+      updated = now;
+    }
+
+    private boolean isFull(Limit limit, long now) {
+      return tokens + (now - updated) * limit.tokensPerNano >= limit.capacity;
+    }
+  }
+
+  private final class Stripe {
+    private final Map<Key, Bucket> buckets;
+
+    private Stripe(final int capacity) {
+      buckets = new LinkedHashMap<Key, Bucket>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Bucket> eldest) {
+          if (size() > capacity) {
+            evictions.incrementAndGet();
+            return true;
+          }
+          return false;
+        }
+      };
     }
 
-    requests.put(ipAddress, ++count);
-    if (count > MAX_REQUESTS) {
-      server.adminLog("RequestTracker banned " + ipAddress
-          + ":\t Too many requests!");
-      server.banKickIP(ipAddress, "Banned: Too many requests!");
+    /**
+     * Returns 0 if a token was taken, or how many requests in a row the
+     * bucket has rejected otherwise.
+     */
+    private synchronized int take(Key key, Limit limit, long now) {
+      Bucket bucket = buckets.get(key);
+      if (bucket == null) {
+        bucket = new Bucket(limit, now);
+        buckets.put(key, bucket);
+      }
+      else {
+        bucket.refill(limit, now);
+      }
+
+      if (bucket.tokens >= 1) {
+        bucket.tokens -= 1;
+        bucket.rejects = 0;
+        return 0;
+      }
+      return ++bucket.rejects;
+    }
+  }
+
+  private static final class Key {
+    private final long high;
+    private final long low;
+    private final int prefix;
+    private final boolean subnet;
+
+    private Key(long high, long low, int prefix, boolean subnet) {
+      this.high = high;
+      this.low = low;
+      this.prefix = prefix;
+      this.subnet = subnet;
+    }
+
+    private static Key host(InetAddress address) {
+      return create(address.getAddress(), false);
+    }
+
+    private static Key subnet(InetAddress address) {
+      return create(address.getAddress(), true);
+    }
+
+    private static Key create(byte[] bytes, boolean subnet) {
+      if (bytes.length == 4) {
+        long value = toLong(bytes, 0, 4);
+        if (subnet) {
+          value &= 0xffffff00L;
+        }
+        return new Key(0, value, subnet ? IPV4_SUBNET : 32, subnet);
+      }
+      long high = toLong(bytes, 0, 8);
+      long low = subnet ? 0 : toLong(bytes, 8, 8);
+      return new Key(high, low, subnet ? IPV6_SUBNET : 128, subnet);
+    }
+
+    private static long toLong(byte[] bytes, int offset, int length) {
+      long value = 0;
+      for (int i = offset; i < offset + length; i++) {
+        value = (value << 8) | (bytes[i] & 0xff);
+      }
+      return value;
+    }
+
+    private boolean isSubnet() {
+      return subnet;
+    }
+
+    @Override
+    public int hashCode() {
+      long hash = high * 31 + low;
+      hash = hash * 31 + prefix;
+      return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) object;
+      return high == other.high && low == other.low && prefix == other.prefix;
     }
   }
 
@@ -67,15 +309,13 @@ public class RequestTracker {
     @Override
     public void run() {
       while (run) {
-        synchronized (RequestTracker.this) {
-          requests.clear();
-        }
-
         try {
-          Thread.sleep(CLEAR_SECONDS * 1000);
+          Thread.sleep(SWEEP_SECONDS * 1000);
         }
         catch (InterruptedException e) {
+          continue;
         }
+        sweep();
       }
     }
   }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010 SimpleServer authors (see CONTRIBUTORS)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package simpleserver.thread;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts the per-connection threads (tunnels, watchdogs, RCON handlers, login
+ * stages) either as platform threads or, when the JVM provides them, as
+ * virtual threads.
+ * Virtual threads are looked up reflectively so SimpleServer still runs on
+ * older JVMs.
+ */
+public final class ThreadLauncher {
+  private static final AtomicInteger platformThreads = new AtomicInteger();
+  private static final AtomicInteger virtualThreads = new AtomicInteger();
+  private static final ConcurrentMap<String, AtomicInteger> roles = new ConcurrentHashMap<String, AtomicInteger>();
+
+  private static volatile boolean useVirtualThreads = false;
+  private static Method ofVirtual;
+  private static Method builderName;
+  private static Method builderUnstarted;
+
+  private ThreadLauncher() {
+  }
+
+  /**
+   * Selects the thread type: "platform", "virtual" or "auto" (virtual when
+   * available). Returns the mode that is actually in effect.
+   */
+  public static synchronized String configure(String mode) {
+    useVirtualThreads = false;
+    if (mode.equals("virtual") || mode.equals("auto")) {
+      useVirtualThreads = lookupVirtualThreads();
+      if (!useVirtualThreads && mode.equals("virtual")) {
+        System.out.println("[SimpleServer] Virtual threads are not supported by this JVM, using platform threads.");
+      }
+    }
+    return useVirtualThreads ? "virtual" : "platform";
+  }
+
+  public static boolean usingVirtualThreads() {
+    return useVirtualThreads;
+  }
+
+  public static Thread start(String name, Runnable task) {
+    Thread thread = create(name, task);
+    thread.start();
+    return thread;
+  }
+
+  public static int platformThreads() {
+    return platformThreads.get();
+  }
+
+  public static int virtualThreads() {
+    return virtualThreads.get();
+  }
+
+  public static String report(int players) {
+    int platform = platformThreads.get();
+    String perPlayer = (players == 0) ? "-"
+                                     : String.format("%.2f", (double) platform
+                                         / players);
+    return "Connection threads: " + (useVirtualThreads ? "virtual" : "platform")
+        + "\nPlatform threads: " + platform + "\nVirtual threads: "
+        + virtualThreads.get() + "\nPlayers: " + players
+        + "\nPlatform threads per player: " + perPlayer + "\n"
+        + reportRoles();
+  }
+
+  private static String reportRoles() {
+    StringBuilder report = new StringBuilder();
+    for (Map.Entry<String, AtomicInteger> role : new TreeMap<String, AtomicInteger>(roles).entrySet()) {
+      int count = role.getValue().get();
+      if (count > 0) {
+        report.append("  ").append(role.getKey()).append(": ").append(count).append("\n");
+      }
+    }
+    return report.toString();
+  }
+
+  private static AtomicInteger role(String name) {
+    AtomicInteger counter = roles.get(name);
+    if (counter == null) {
+      AtomicInteger created = new AtomicInteger();
+      counter = roles.putIfAbsent(name, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Creates a thread like {@link #start} without starting it, for thread
+   * pool factories. The name is the role the thread is counted under.
+   */
+  public static Thread create(String name, Runnable task) {
+    if (useVirtualThreads) {
+      try {
+        Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+        return (Thread) builderUnstarted.invoke(builder,
+                                                new CountedTask(task,
+                                                                virtualThreads,
+                                                                role(name)));
+      }
+      catch (Exception e) {
+        System.out.println("[SimpleServer] " + e);
+        System.out.println("[SimpleServer] Could not start virtual thread, using platform threads.");
+        useVirtualThreads = false;
+      }
+    }
+
+    Thread thread = new Thread(new CountedTask(task, platformThreads,
+                                               role(name)));
+    thread.setName(name);
+    return thread;
+  }
+
+  private static boolean lookupVirtualThreads() {
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      builderName = builder.getMethod("name", String.class);
+      builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+
+      // Preview builds refuse to create virtual threads without
+      // --enable-preview, so try one before committing to them.
+      Object test = builderName.invoke(ofVirtual.invoke(null), "VirtualThreadTest");
+      builderUnstarted.invoke(test, new Runnable() {
+        public void run() {
+        }
+      });
+      return true;
+    }
+    catch (Exception e) {
+      return false;
+    }
+    catch (LinkageError e) {
+      return false;
+    }
+  }
+
+  private static final class CountedTask implements Runnable {
+    private final Runnable task;
+    private final AtomicInteger counter;
+    private final AtomicInteger role;
+
+    private CountedTask(Runnable task, AtomicInteger counter,
+                        AtomicInteger role) {
+      this.task = task;
+      this.counter = counter;
+      this.role = role;
+    }
+
+    public void run() {
+      counter.incrementAndGet();
+      role.incrementAndGet();
+      try {
+        task.run();
+      }
+      finally {
+        role.decrementAndGet();
+        counter.decrementAndGet();
+      }
+    }
+  }
+}